@@ -0,0 +1,29 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine;
+
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Wird geworfen, wenn der Redmine-Server die gesendeten Daten als ungueltig abgelehnt hat.
+ * Im Gegensatz zu anderen Fehlern bringt eine Wiederholung der Aktion nichts.
+ */
+public class DataRejectedException extends ApplicationException
+{
+  /**
+   * ct.
+   * @param message
+   * @param cause
+   */
+  public DataRejectedException(String message, Throwable cause)
+  {
+    super(message,cause);
+  }
+}
+
+
@@ -0,0 +1,29 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine;
+
+import de.willuhn.util.ApplicationException;
+
+/**
+ * Wird geworfen, wenn der Redmine-Server nicht erreichbar ist.
+ * Im Gegensatz zu anderen Fehlern kann die Aktion spaeter wiederholt werden.
+ */
+public class ServerUnavailableException extends ApplicationException
+{
+  /**
+   * ct.
+   * @param message
+   * @param cause
+   */
+  public ServerUnavailableException(String message, Throwable cause)
+  {
+    super(message,cause);
+  }
+}
+
+
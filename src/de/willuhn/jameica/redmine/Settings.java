@@ -7,6 +7,9 @@
 
 package de.willuhn.jameica.redmine;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
 import de.willuhn.jameica.security.Wallet;
@@ -115,6 +118,7 @@ public class Settings
   
   /**
    * Liefert das Intervall in Minuten, nach denen der Cache neu geladen wird.
+   * Dabei werden die Issues aktualisiert, die uebrigen Daten nur nach Ablauf ihrer Gueltigkeitsdauer.
    * @return das Intervall in Minuten, nach denen der Cache neu geladen wird.
    */
   public int getCacheReloadInterval()
@@ -134,6 +138,376 @@ public class Settings
     this.getSettings().setAttribute("cache.reload.minutes",minutes);
   }
   
+  /**
+   * Liefert das maximale Intervall in Minuten, nach denen der Cache neu geladen wird.
+   * Aendert sich auf dem Server nichts, wird das Intervall bis hierhin verlaengert.
+   * Das ist auch die maximale Wartezeit nach einem Fehler.
+   * @return das maximale Intervall in Minuten.
+   */
+  public int getCacheReloadMaxInterval()
+  {
+    return Math.max(this.getCacheReloadInterval(),this.getSettings().getInt("cache.reload.max.minutes",30));
+  }
+  
+  /**
+   * Speichert das maximale Intervall in Minuten, nach denen der Cache neu geladen wird.
+   * @param minutes das maximale Intervall in Minuten.
+   * @throws ApplicationException
+   */
+  public void setCacheReloadMaxInterval(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltiges maximales Reload-Intervall."));
+    this.getSettings().setAttribute("cache.reload.max.minutes",minutes);
+  }
+  
+  /**
+   * Liefert den Timeout in Sekunden fuer den Verbindungsaufbau zum Server.
+   * @return der Timeout in Sekunden.
+   */
+  public int getHttpConnectTimeout()
+  {
+    return this.getSettings().getInt("http.timeout.connect.seconds",10);
+  }
+  
+  /**
+   * Speichert den Timeout in Sekunden fuer den Verbindungsaufbau zum Server.
+   * @param seconds der Timeout in Sekunden.
+   * @throws ApplicationException
+   */
+  public void setHttpConnectTimeout(int seconds) throws ApplicationException
+  {
+    if (seconds < 1)
+      throw new ApplicationException(i18n.tr("Ungltiger Timeout fr den Verbindungsaufbau."));
+    this.getSettings().setAttribute("http.timeout.connect.seconds",seconds);
+  }
+  
+  /**
+   * Liefert den Timeout in Sekunden, die maximal auf Daten vom Server gewartet wird.
+   * @return der Timeout in Sekunden.
+   */
+  public int getHttpReadTimeout()
+  {
+    return this.getSettings().getInt("http.timeout.read.seconds",60);
+  }
+  
+  /**
+   * Speichert den Timeout in Sekunden, die maximal auf Daten vom Server gewartet wird.
+   * @param seconds der Timeout in Sekunden.
+   * @throws ApplicationException
+   */
+  public void setHttpReadTimeout(int seconds) throws ApplicationException
+  {
+    if (seconds < 1)
+      throw new ApplicationException(i18n.tr("Ungltiger Timeout fr das Lesen der Daten."));
+    this.getSettings().setAttribute("http.timeout.read.seconds",seconds);
+  }
+  
+  /**
+   * Liefert die maximale Anzahl der Requests pro Sekunde an den Server.
+   * @return die maximale Anzahl der Requests pro Sekunde. 0 fuer unbegrenzt.
+   */
+  public int getHttpRateLimit()
+  {
+    return this.getSettings().getInt("http.ratelimit.rate",10);
+  }
+  
+  /**
+   * Speichert die maximale Anzahl der Requests pro Sekunde an den Server.
+   * @param rate die maximale Anzahl der Requests pro Sekunde. 0 fuer unbegrenzt.
+   * @throws ApplicationException
+   */
+  public void setHttpRateLimit(int rate) throws ApplicationException
+  {
+    if (rate < 0)
+      throw new ApplicationException(i18n.tr("Ungltige Anzahl an Anfragen pro Sekunde."));
+    this.getSettings().setAttribute("http.ratelimit.rate",rate);
+  }
+  
+  /**
+   * Liefert die maximale Anzahl der Requests pro Sekunde, die beim Neuladen des Caches
+   * im Hintergrund an den Server gesendet werden.
+   * @return die maximale Anzahl der Requests pro Sekunde. 0 fuer unbegrenzt.
+   */
+  public int getHttpRateLimitBackground()
+  {
+    return this.getSettings().getInt("http.ratelimit.background.rate",5);
+  }
+  
+  /**
+   * Speichert die maximale Anzahl der Requests pro Sekunde, die beim Neuladen des Caches
+   * im Hintergrund an den Server gesendet werden.
+   * @param rate die maximale Anzahl der Requests pro Sekunde. 0 fuer unbegrenzt.
+   * @throws ApplicationException
+   */
+  public void setHttpRateLimitBackground(int rate) throws ApplicationException
+  {
+    if (rate < 0)
+      throw new ApplicationException(i18n.tr("Ungltige Anzahl an Anfragen pro Sekunde im Hintergrund."));
+    this.getSettings().setAttribute("http.ratelimit.background.rate",rate);
+  }
+  
+  /**
+   * Liefert true, wenn beim Neuladen des Caches nur die geaenderten Issues abgerufen werden sollen.
+   * @return true, wenn nur die geaenderten Issues abgerufen werden sollen.
+   */
+  public boolean getCacheReloadIncremental()
+  {
+    return this.getSettings().getBoolean("cache.reload.incremental",true);
+  }
+  
+  /**
+   * Legt fest, ob beim Neuladen des Caches nur die geaenderten Issues abgerufen werden sollen.
+   * @param b true, wenn nur die geaenderten Issues abgerufen werden sollen.
+   */
+  public void setCacheReloadIncremental(boolean b)
+  {
+    this.getSettings().setAttribute("cache.reload.incremental",b);
+  }
+  
+  /**
+   * Liefert das Intervall in Minuten, nach denen der Cache komplett neu geladen wird,
+   * auch wenn sonst nur die geaenderten Issues abgerufen werden.
+   * @return das Intervall in Minuten, nach denen der Cache komplett neu geladen wird.
+   */
+  public int getCacheFullReloadInterval()
+  {
+    return this.getSettings().getInt("cache.reload.full.minutes",60);
+  }
+  
+  /**
+   * Speichert das Intervall in Minuten, nach denen der Cache komplett neu geladen wird.
+   * @param minutes das Intervall in Minuten, nach denen der Cache komplett neu geladen wird.
+   * @throws ApplicationException
+   */
+  public void setCacheFullReloadInterval(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltiges Intervall fr das vollstndige Neuladen."));
+    this.getSettings().setAttribute("cache.reload.full.minutes",minutes);
+  }
+  
+  /**
+   * Liefert die Gueltigkeitsdauer des aktuellen Users im Cache in Minuten.
+   * Danach werden sie beim naechsten Reload neu abgerufen.
+   * @return die Gueltigkeitsdauer in Minuten.
+   */
+  public int getCacheUserTtl()
+  {
+    return this.getSettings().getInt("cache.ttl.user.minutes",1440);
+  }
+  
+  /**
+   * Speichert die Gueltigkeitsdauer des aktuellen Users im Cache in Minuten.
+   * @param minutes die Gueltigkeitsdauer in Minuten.
+   * @throws ApplicationException
+   */
+  public void setCacheUserTtl(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltige Gltigkeitsdauer fr den User."));
+    this.getSettings().setAttribute("cache.ttl.user.minutes",minutes);
+  }
+  
+  /**
+   * Liefert die Gueltigkeitsdauer der Projekte und Mitgliedschaften im Cache in Minuten.
+   * Danach werden sie beim naechsten Reload neu abgerufen.
+   * @return die Gueltigkeitsdauer in Minuten.
+   */
+  public int getCacheProjectsTtl()
+  {
+    return this.getSettings().getInt("cache.ttl.projects.minutes",240);
+  }
+  
+  /**
+   * Speichert die Gueltigkeitsdauer der Projekte und Mitgliedschaften im Cache in Minuten.
+   * @param minutes die Gueltigkeitsdauer in Minuten.
+   * @throws ApplicationException
+   */
+  public void setCacheProjectsTtl(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltige Gltigkeitsdauer fr die Projekte."));
+    this.getSettings().setAttribute("cache.ttl.projects.minutes",minutes);
+  }
+  
+  /**
+   * Liefert die Gueltigkeitsdauer der Aktivitaeten im Cache in Minuten.
+   * Danach werden sie beim naechsten Reload neu abgerufen.
+   * @return die Gueltigkeitsdauer in Minuten.
+   */
+  public int getCacheActivitiesTtl()
+  {
+    return this.getSettings().getInt("cache.ttl.activities.minutes",1440);
+  }
+  
+  /**
+   * Speichert die Gueltigkeitsdauer der Aktivitaeten im Cache in Minuten.
+   * @param minutes die Gueltigkeitsdauer in Minuten.
+   * @throws ApplicationException
+   */
+  public void setCacheActivitiesTtl(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltige Gltigkeitsdauer fr die Aktivitten."));
+    this.getSettings().setAttribute("cache.ttl.activities.minutes",minutes);
+  }
+  
+  /**
+   * Liefert true, wenn die Issues aller Projekte beim Neuladen des Caches mit einer gemeinsamen
+   * Abfrage geladen werden sollen statt einzeln pro Projekt.
+   * @return true, wenn die Issues mit einer gemeinsamen Abfrage geladen werden sollen.
+   */
+  public boolean getCacheReloadBulk()
+  {
+    return this.getSettings().getBoolean("cache.reload.bulk",true);
+  }
+  
+  /**
+   * Legt fest, ob die Issues aller Projekte beim Neuladen des Caches mit einer gemeinsamen
+   * Abfrage geladen werden sollen statt einzeln pro Projekt.
+   * @param b true, wenn die Issues mit einer gemeinsamen Abfrage geladen werden sollen.
+   */
+  public void setCacheReloadBulk(boolean b)
+  {
+    this.getSettings().setAttribute("cache.reload.bulk",b);
+  }
+  
+  /**
+   * Liefert die Anzahl der Projekte, deren Issues beim Neuladen des Caches parallel abgerufen werden.
+   * @return die Anzahl der parallelen Abrufe.
+   */
+  public int getCacheReloadThreads()
+  {
+    return this.getSettings().getInt("cache.reload.threads",4);
+  }
+  
+  /**
+   * Speichert die Anzahl der Projekte, deren Issues beim Neuladen des Caches parallel abgerufen werden.
+   * @param threads die Anzahl der parallelen Abrufe.
+   * @throws ApplicationException
+   */
+  public void setCacheReloadThreads(int threads) throws ApplicationException
+  {
+    if (threads < 1)
+      throw new ApplicationException(i18n.tr("Ungltige Anzahl paralleler Abrufe."));
+    this.getSettings().setAttribute("cache.reload.threads",threads);
+  }
+  
+  /**
+   * Liefert true, wenn abgeschlossene Zeiterfassungen erst gesammelt und dann zusammengefasst
+   * uebertragen werden sollen.
+   * @return true, wenn die Zeiterfassungen gesammelt werden sollen.
+   */
+  public boolean getCommitConsolidate()
+  {
+    return this.getSettings().getBoolean("commit.consolidate",false);
+  }
+  
+  /**
+   * Legt fest, ob abgeschlossene Zeiterfassungen erst gesammelt und dann zusammengefasst
+   * uebertragen werden sollen.
+   * @param b true, wenn die Zeiterfassungen gesammelt werden sollen.
+   */
+  public void setCommitConsolidate(boolean b)
+  {
+    this.getSettings().setAttribute("commit.consolidate",b);
+  }
+  
+  /**
+   * Liefert das Intervall in Minuten, nach denen die gesammelten Zeiterfassungen uebertragen werden.
+   * @return das Intervall in Minuten.
+   */
+  public int getCommitConsolidateInterval()
+  {
+    return this.getSettings().getInt("commit.consolidate.minutes",60);
+  }
+  
+  /**
+   * Speichert das Intervall in Minuten, nach denen die gesammelten Zeiterfassungen uebertragen werden.
+   * @param minutes das Intervall in Minuten.
+   * @throws ApplicationException
+   */
+  public void setCommitConsolidateInterval(int minutes) throws ApplicationException
+  {
+    if (minutes < 1)
+      throw new ApplicationException(i18n.tr("Ungltiges Intervall fr die bertragung der gesammelten Zeiterfassungen."));
+    this.getSettings().setAttribute("commit.consolidate.minutes",minutes);
+  }
+  
+  /**
+   * Liefert die IDs der zuletzt verwendeten Issues, das zuletzt verwendete zuerst.
+   * @return die IDs der zuletzt verwendeten Issues.
+   */
+  public List<Integer> getRecentIssues()
+  {
+    return this.getIds("redmine.issues.recent");
+  }
+  
+  /**
+   * Speichert die IDs der zuletzt verwendeten Issues.
+   * @param ids die IDs der zuletzt verwendeten Issues, das zuletzt verwendete zuerst.
+   */
+  public void setRecentIssues(List<Integer> ids)
+  {
+    this.setIds("redmine.issues.recent",ids);
+  }
+  
+  /**
+   * Liefert die IDs der angehefteten Issues.
+   * @return die IDs der angehefteten Issues.
+   */
+  public List<Integer> getPinnedIssues()
+  {
+    return this.getIds("redmine.issues.pinned");
+  }
+  
+  /**
+   * Speichert die IDs der angehefteten Issues.
+   * @param ids die IDs der angehefteten Issues.
+   */
+  public void setPinnedIssues(List<Integer> ids)
+  {
+    this.setIds("redmine.issues.pinned",ids);
+  }
+  
+  /**
+   * Liest eine Liste von IDs aus den Settings.
+   * @param key der Schluessel.
+   * @return die Liste der IDs.
+   */
+  private List<Integer> getIds(String key)
+  {
+    List<Integer> result = new ArrayList<Integer>();
+    for (String s:this.getSettings().getList(key,new String[0]))
+    {
+      try
+      {
+        result.add(Integer.valueOf(s.trim()));
+      }
+      catch (NumberFormatException e)
+      {
+        Logger.warn("invalid issue id in " + key + ": " + s + ", skipping");
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Speichert eine Liste von IDs in den Settings.
+   * @param key der Schluessel.
+   * @param ids die Liste der IDs.
+   */
+  private void setIds(String key, List<Integer> ids)
+  {
+    String[] values = new String[ids.size()];
+    for (int i=0;i<values.length;++i)
+    {
+      values[i] = ids.get(i).toString();
+    }
+    this.getSettings().setAttribute(key,values);
+  }
+  
   /**
    * Liefert den Settings-Container.
    * @return der Settings-Container.
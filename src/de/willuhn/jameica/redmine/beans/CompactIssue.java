@@ -0,0 +1,103 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.beans;
+
+import java.util.Date;
+
+import com.taskadapter.redmineapi.bean.Issue;
+
+/**
+ * Unveraenderliche, kompakte Form eines Issues fuer den Cache.
+ * Enthaelt nur die Attribute, die fuer die Anzeige im Systray und das Starten
+ * der Zeiterfassung benoetigt werden. Das vollstaendige Issue kann bei Bedarf
+ * ueber die ID vom Server geladen werden.
+ */
+public final class CompactIssue
+{
+  private final int id;
+  private final int projectId;
+  private final int assigneeId;
+  private final String subject;
+  private final long updatedOn;
+
+  /**
+   * ct.
+   * @param id die ID des Issues.
+   * @param projectId die ID des Projektes. Kann NULL sein.
+   * @param assigneeId die ID des zugewiesenen Users. Kann NULL sein.
+   * @param subject der Titel.
+   * @param updatedOn Zeitpunkt der letzten Aenderung. Kann NULL sein.
+   */
+  public CompactIssue(int id, Integer projectId, Integer assigneeId, String subject, Date updatedOn)
+  {
+    // Redmine vergibt nur positive IDs. Daher koennen wir 0 fuer "nicht vorhanden" verwenden
+    // und muessen keine Integer-Objekte halten.
+    this.id         = id;
+    this.projectId  = projectId != null ? projectId.intValue() : 0;
+    this.assigneeId = assigneeId != null ? assigneeId.intValue() : 0;
+    this.subject    = subject;
+    this.updatedOn  = updatedOn != null ? updatedOn.getTime() : -1L;
+  }
+
+  /**
+   * Erzeugt die kompakte Form des Issues.
+   * @param issue das vollstaendige Issue.
+   * @return die kompakte Form.
+   */
+  public static CompactIssue create(Issue issue)
+  {
+    return new CompactIssue(issue.getId(),issue.getProjectId(),issue.getAssigneeId(),issue.getSubject(),issue.getUpdatedOn());
+  }
+
+  /**
+   * Liefert die ID des Issues.
+   * @return die ID des Issues.
+   */
+  public Integer getId()
+  {
+    return this.id;
+  }
+
+  /**
+   * Liefert die ID des Projektes.
+   * @return die ID des Projektes oder NULL.
+   */
+  public Integer getProjectId()
+  {
+    return this.projectId != 0 ? Integer.valueOf(this.projectId) : null;
+  }
+
+  /**
+   * Liefert die ID des zugewiesenen Users.
+   * @return die ID des zugewiesenen Users oder NULL, wenn das Issue niemandem zugewiesen ist.
+   */
+  public Integer getAssigneeId()
+  {
+    return this.assigneeId != 0 ? Integer.valueOf(this.assigneeId) : null;
+  }
+
+  /**
+   * Liefert den Titel des Issues.
+   * @return der Titel des Issues.
+   */
+  public String getSubject()
+  {
+    return this.subject;
+  }
+
+  /**
+   * Liefert den Zeitpunkt der letzten Aenderung.
+   * @return der Zeitpunkt der letzten Aenderung oder NULL, wenn er nicht bekannt ist.
+   */
+  public Date getUpdatedOn()
+  {
+    return this.updatedOn != -1L ? new Date(this.updatedOn) : null;
+  }
+}
+
+
@@ -47,6 +47,20 @@ public class SettingsView implements Extension
   private TextInput url            = null;
   private TextInput apiKey         = null;
   private SpinnerInput interval    = null;
+  private SpinnerInput maxInterval = null;
+  private SpinnerInput threads     = null;
+  private SpinnerInput connectTimeout = null;
+  private SpinnerInput readTimeout = null;
+  private SpinnerInput rate        = null;
+  private SpinnerInput backgroundRate = null;
+  private CheckboxInput bulk       = null;
+  private CheckboxInput delta      = null;
+  private SpinnerInput full        = null;
+  private SpinnerInput userTtl     = null;
+  private SpinnerInput projectsTtl = null;
+  private SpinnerInput activitiesTtl = null;
+  private CheckboxInput consolidate = null;
+  private SpinnerInput flush       = null;
   
   /**
    * @see de.willuhn.jameica.gui.extension.Extension#extend(de.willuhn.jameica.gui.extension.Extendable)
@@ -101,6 +115,20 @@ public class SettingsView implements Extension
           url      = null;
           apiKey   = null;
           interval = null;
+          maxInterval = null;
+          threads  = null;
+          connectTimeout = null;
+          readTimeout = null;
+          rate     = null;
+          backgroundRate = null;
+          bulk     = null;
+          delta    = null;
+          full     = null;
+          userTtl  = null;
+          projectsTtl = null;
+          activitiesTtl = null;
+          consolidate = null;
+          flush    = null;
           Application.getMessagingFactory().unRegisterMessageConsumer(mc);
         }
       
@@ -111,8 +139,23 @@ public class SettingsView implements Extension
       tab.addInput(this.getApiKey());
       tab.addHeadline(i18n.tr("Verbindungseinstellungen"));
       tab.addInput(this.getInterval());
+      tab.addInput(this.getMaxInterval());
+      tab.addInput(this.getDelta());
+      tab.addInput(this.getFull());
+      tab.addInput(this.getProjectsTtl());
+      tab.addInput(this.getActivitiesTtl());
+      tab.addInput(this.getUserTtl());
+      tab.addInput(this.getBulk());
+      tab.addInput(this.getThreads());
+      tab.addInput(this.getConnectTimeout());
+      tab.addInput(this.getReadTimeout());
+      tab.addInput(this.getRate());
+      tab.addInput(this.getBackgroundRate());
       tab.addInput(this.getOwn());
       tab.addInput(this.getUnassigned());
+      tab.addHeadline(i18n.tr("Zeiterfassung"));
+      tab.addInput(this.getConsolidate());
+      tab.addInput(this.getFlush());
       tab.addSeparator();
       
       InfoPanel panel = new InfoPanel();
@@ -200,11 +243,218 @@ public class SettingsView implements Extension
       return this.interval;
     
     this.interval = new SpinnerInput(1,60,this.settings.getCacheReloadInterval());
-    this.interval.setName(i18n.tr("Zwischengespeicherte Daten neu laden nach jeweils"));
+    this.interval.setName(i18n.tr("Aufgaben aktualisieren nach jeweils"));
     this.interval.setComment(i18n.tr("Minuten"));
     return this.interval;
   }
 
+  /**
+   * Liefert das Eingabefeld fuer das maximale Reload-Intervall.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getMaxInterval()
+  {
+    if (this.maxInterval != null)
+      return this.maxInterval;
+    
+    this.maxInterval = new SpinnerInput(1,1440,this.settings.getCacheReloadMaxInterval());
+    this.maxInterval.setName(i18n.tr("Ohne nderungen oder bei Fehlern seltener, hchstens nach"));
+    this.maxInterval.setComment(i18n.tr("Minuten"));
+    return this.maxInterval;
+  }
+
+  /**
+   * Checkbox, zum Konfigurieren, ob beim Neuladen nur die geaenderten Aufgaben abgerufen werden sollen.
+   * @return Checkbox.
+   */
+  private CheckboxInput getDelta()
+  {
+    if (this.delta != null)
+      return this.delta;
+    
+    this.delta = new CheckboxInput(this.settings.getCacheReloadIncremental());
+    this.delta.setName(i18n.tr("Beim Neuladen nur genderte Aufgaben abrufen"));
+    return this.delta;
+  }
+  
+  /**
+   * Liefert das Eingabefeld fuer das Intervall, nach dem die Daten komplett neu geladen werden.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getFull()
+  {
+    if (this.full != null)
+      return this.full;
+    
+    this.full = new SpinnerInput(1,1440,this.settings.getCacheFullReloadInterval());
+    this.full.setName(i18n.tr("Aufgaben vollstndig neu laden nach jeweils"));
+    this.full.setComment(i18n.tr("Minuten"));
+    return this.full;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die Gueltigkeitsdauer der Projekte.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getProjectsTtl()
+  {
+    if (this.projectsTtl != null)
+      return this.projectsTtl;
+    
+    this.projectsTtl = new SpinnerInput(1,10080,this.settings.getCacheProjectsTtl());
+    this.projectsTtl.setName(i18n.tr("Projekte und Mitgliedschaften neu laden nach jeweils"));
+    this.projectsTtl.setComment(i18n.tr("Minuten"));
+    return this.projectsTtl;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die Gueltigkeitsdauer der Aktivitaeten.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getActivitiesTtl()
+  {
+    if (this.activitiesTtl != null)
+      return this.activitiesTtl;
+    
+    this.activitiesTtl = new SpinnerInput(1,10080,this.settings.getCacheActivitiesTtl());
+    this.activitiesTtl.setName(i18n.tr("Aktivitten neu laden nach jeweils"));
+    this.activitiesTtl.setComment(i18n.tr("Minuten"));
+    return this.activitiesTtl;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die Gueltigkeitsdauer des Users.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getUserTtl()
+  {
+    if (this.userTtl != null)
+      return this.userTtl;
+    
+    this.userTtl = new SpinnerInput(1,10080,this.settings.getCacheUserTtl());
+    this.userTtl.setName(i18n.tr("Benutzer neu laden nach jeweils"));
+    this.userTtl.setComment(i18n.tr("Minuten"));
+    return this.userTtl;
+  }
+
+  /**
+   * Checkbox, zum Konfigurieren, ob die Aufgaben aller Projekte mit einer gemeinsamen Abfrage geladen werden sollen.
+   * @return Checkbox.
+   */
+  private CheckboxInput getBulk()
+  {
+    if (this.bulk != null)
+      return this.bulk;
+    
+    this.bulk = new CheckboxInput(this.settings.getCacheReloadBulk());
+    this.bulk.setName(i18n.tr("Aufgaben aller Projekte mit einer gemeinsamen Abfrage laden"));
+    return this.bulk;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die Anzahl der parallelen Abrufe beim Neuladen.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getThreads()
+  {
+    if (this.threads != null)
+      return this.threads;
+    
+    this.threads = new SpinnerInput(1,16,this.settings.getCacheReloadThreads());
+    this.threads.setName(i18n.tr("Aufgaben beim Neuladen parallel abrufen fr"));
+    this.threads.setComment(i18n.tr("Projekte"));
+    return this.threads;
+  }
+
+  /**
+   * Checkbox, zum Konfigurieren, ob kurze Zeiterfassungen gesammelt und zusammengefasst uebertragen werden sollen.
+   * @return Checkbox.
+   */
+  private CheckboxInput getConsolidate()
+  {
+    if (this.consolidate != null)
+      return this.consolidate;
+    
+    this.consolidate = new CheckboxInput(this.settings.getCommitConsolidate());
+    this.consolidate.setName(i18n.tr("Zeiterfassungen sammeln und pro Aufgabe und Tag zusammengefasst bertragen"));
+    return this.consolidate;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer das Intervall, nach dem die gesammelten Zeiterfassungen uebertragen werden.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getFlush()
+  {
+    if (this.flush != null)
+      return this.flush;
+    
+    this.flush = new SpinnerInput(1,1440,this.settings.getCommitConsolidateInterval());
+    this.flush.setName(i18n.tr("Gesammelte Zeiterfassungen bertragen nach jeweils"));
+    this.flush.setComment(i18n.tr("Minuten"));
+    return this.flush;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer den Timeout beim Verbindungsaufbau.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getConnectTimeout()
+  {
+    if (this.connectTimeout != null)
+      return this.connectTimeout;
+    
+    this.connectTimeout = new SpinnerInput(1,300,this.settings.getHttpConnectTimeout());
+    this.connectTimeout.setName(i18n.tr("Verbindungsaufbau abbrechen nach"));
+    this.connectTimeout.setComment(i18n.tr("Sekunden"));
+    return this.connectTimeout;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer den Timeout beim Lesen der Daten.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getReadTimeout()
+  {
+    if (this.readTimeout != null)
+      return this.readTimeout;
+    
+    this.readTimeout = new SpinnerInput(1,600,this.settings.getHttpReadTimeout());
+    this.readTimeout.setName(i18n.tr("Auf Antwort des Servers warten hchstens"));
+    this.readTimeout.setComment(i18n.tr("Sekunden"));
+    return this.readTimeout;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die maximale Anzahl an Anfragen pro Sekunde.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getRate()
+  {
+    if (this.rate != null)
+      return this.rate;
+    
+    this.rate = new SpinnerInput(0,100,this.settings.getHttpRateLimit());
+    this.rate.setName(i18n.tr("Anfragen an den Server begrenzen auf"));
+    this.rate.setComment(i18n.tr("pro Sekunde (0 = unbegrenzt)"));
+    return this.rate;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die maximale Anzahl an Anfragen pro Sekunde beim Neuladen im Hintergrund.
+   * @return Eingabefeld.
+   */
+  private SpinnerInput getBackgroundRate()
+  {
+    if (this.backgroundRate != null)
+      return this.backgroundRate;
+    
+    this.backgroundRate = new SpinnerInput(0,100,this.settings.getHttpRateLimitBackground());
+    this.backgroundRate.setName(i18n.tr("Davon beim Neuladen im Hintergrund hchstens"));
+    this.backgroundRate.setComment(i18n.tr("pro Sekunde (0 = unbegrenzt)"));
+    return this.backgroundRate;
+  }
+
   /**
    * Speichert die Einstellungen.
    */
@@ -215,14 +465,42 @@ public class SettingsView implements Extension
       String url    = (String)  this.getUrl().getValue();
       String apiKey = (String)  this.getApiKey().getValue();
       Integer i     = (Integer) this.getInterval().getValue();
+      Integer m     = (Integer) this.getMaxInterval().getValue();
+      Integer t     = (Integer) this.getThreads().getValue();
+      Integer ct    = (Integer) this.getConnectTimeout().getValue();
+      Integer rt    = (Integer) this.getReadTimeout().getValue();
+      Integer r     = (Integer) this.getRate().getValue();
+      Integer br    = (Integer) this.getBackgroundRate().getValue();
       Boolean b     = (Boolean) this.getOwn().getValue();
       Boolean b2     = (Boolean) this.getUnassigned().getValue();
+      Boolean b3     = (Boolean) this.getBulk().getValue();
+      Boolean b4     = (Boolean) this.getDelta().getValue();
+      Integer f      = (Integer) this.getFull().getValue();
+      Integer f3     = (Integer) this.getProjectsTtl().getValue();
+      Integer f4     = (Integer) this.getActivitiesTtl().getValue();
+      Integer f5     = (Integer) this.getUserTtl().getValue();
+      Boolean b5     = (Boolean) this.getConsolidate().getValue();
+      Integer f2     = (Integer) this.getFlush().getValue();
 
       this.settings.setUrl(url);
       this.settings.setApiKey(apiKey);
       this.settings.setCacheReloadInterval(i.intValue());
+      this.settings.setCacheReloadMaxInterval(m.intValue());
+      this.settings.setCacheReloadThreads(t.intValue());
+      this.settings.setHttpConnectTimeout(ct.intValue());
+      this.settings.setHttpReadTimeout(rt.intValue());
+      this.settings.setHttpRateLimit(r.intValue());
+      this.settings.setHttpRateLimitBackground(br.intValue());
+      this.settings.setCacheReloadBulk(b3.booleanValue());
+      this.settings.setCacheReloadIncremental(b4.booleanValue());
+      this.settings.setCacheFullReloadInterval(f.intValue());
+      this.settings.setCacheProjectsTtl(f3.intValue());
+      this.settings.setCacheActivitiesTtl(f4.intValue());
+      this.settings.setCacheUserTtl(f5.intValue());
       this.settings.setOnlyOwnIssues(b.booleanValue());
       this.settings.setUnassignedIssues(b2.booleanValue());
+      this.settings.setCommitConsolidate(b5.booleanValue());
+      this.settings.setCommitConsolidateInterval(f2.intValue());
     }
     catch (ApplicationException ae)
     {
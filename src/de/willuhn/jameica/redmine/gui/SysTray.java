@@ -7,7 +7,12 @@
 
 package de.willuhn.jameica.redmine.gui;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -23,7 +28,6 @@ import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.Tray;
 import org.eclipse.swt.widgets.TrayItem;
 
-import com.taskadapter.redmineapi.bean.Issue;
 import com.taskadapter.redmineapi.bean.TimeEntry;
 
 import de.willuhn.annotation.Lifecycle;
@@ -37,9 +41,14 @@ import de.willuhn.jameica.messaging.QueryMessage;
 import de.willuhn.jameica.messaging.StatusBarMessage;
 import de.willuhn.jameica.redmine.DismissTimeEntryException;
 import de.willuhn.jameica.redmine.Plugin;
+import de.willuhn.jameica.redmine.beans.CompactIssue;
 import de.willuhn.jameica.redmine.beans.ProjectTree;
+import de.willuhn.jameica.redmine.gui.dialogs.IssuePickerDialog;
 import de.willuhn.jameica.redmine.gui.dialogs.TimeEntryCommitDialog;
+import de.willuhn.jameica.redmine.service.CacheSnapshot;
 import de.willuhn.jameica.redmine.service.CachingRedmineService;
+import de.willuhn.jameica.redmine.service.CommitService;
+import de.willuhn.jameica.redmine.service.ReloadService;
 import de.willuhn.jameica.redmine.util.DurationFormatter;
 import de.willuhn.jameica.system.Application;
 import de.willuhn.jameica.system.OperationCanceledException;
@@ -57,10 +66,26 @@ public class SysTray
   
   private final static DurationFormatter format = new DurationFormatter();
   
+  /**
+   * Maximale Anzahl der Issues, die direkt in einem Untermenu angezeigt werden.
+   */
+  private final static int MAX_ISSUES = 50;
+  
   @Resource
   private CachingRedmineService service;
   
+  @Resource(name="commit-service")
+  private CommitService commits;
+  
+  @Resource(name="reload-service")
+  private ReloadService reload;
+  
   private TrayItem item = null;
+  
+  // Das zuletzt erzeugte ContextMenu und der Stand, aus dem es erzeugt wurde
+  private Menu menu = null;
+  private long menuGeneration = -1L;
+  private TimeEntry menuEntry = null;
 
   /**
    * Startet das Systray.
@@ -126,32 +151,117 @@ public class SysTray
     final TimeEntry current = service.getCurrentTimeEntry();
     if (current != null)
       stopCurrentTimeEntry();
+    
+    this.disposeMenu();
   }
   
 
   /**
    * Oeffnet das ContextMenu.
+   * Das Menu wird nur dann neu erzeugt, wenn sich der Stand des Caches oder die
+   * laufende Zeiterfassung geaendert hat. Ansonsten wird das vorherige erneut angezeigt.
    */
   private void getMenu()
   {
     try
     {
-      List<ProjectTree> projects = service.getProjects();
+      CacheSnapshot snapshot = service.getSnapshot();
+      TimeEntry current = service.getCurrentTimeEntry();
+      
+      if (this.menu == null || this.menu.isDisposed() || this.menuGeneration != snapshot.getGeneration() || this.menuEntry != current)
+      {
+        this.disposeMenu();
+        this.menu = this.createMenu(snapshot,current);
+        this.menuGeneration = snapshot.getGeneration();
+        this.menuEntry = current;
+      }
+      
+      // Menu anzeigen
+      this.menu.setVisible(true);
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to display menu",e);
+    }
+  }
+  
+  /**
+   * Gibt das aktuelle ContextMenu frei.
+   */
+  private void disposeMenu()
+  {
+    if (this.menu != null && !this.menu.isDisposed())
+      this.menu.dispose(); // Gibt auch alle Untermenus frei
+    this.menu = null;
+  }
+  
+  /**
+   * Erzeugt das ContextMenu.
+   * @param snapshot der Stand des Caches, aus dem das Menu erzeugt wird. Das komplette Menu
+   * wird aus ein und demselben Stand erzeugt, auch wenn parallel ein Reload laeuft.
+   * @param current die laufende Zeiterfassung. Kann NULL sein.
+   * @return das Menu.
+   */
+  private Menu createMenu(final CacheSnapshot snapshot, final TimeEntry current)
+  {
+    List<ProjectTree> projects = snapshot.getProjects();
+
+    final Menu menu = new Menu(GUI.getShell(), SWT.POP_UP);
+
+    ///////////////////////////////////////////////////////////////
+    // Programm beenden
+    MenuItem shutdown = new MenuItem(menu, SWT.PUSH);
+    shutdown.setText("Programm beenden");
+    shutdown.addListener(SWT.Selection, new Listener()
+    {
+      public void handleEvent (Event e)
+      {
+        try
+        {
+          if (Application.getCallback().askUser(i18n.tr("Jameica wirklich beenden?")))
+            new FileClose().handleAction(null);
+        }
+        catch (OperationCanceledException oce)
+        {
+          // ignore
+        }
+        catch (Exception e2)
+        {
+          Logger.error("unable to shutdown",e2);
+        }
+      }
+    });
+    //
+    ///////////////////////////////////////////////////////////////
 
-      final Menu menu = new Menu(GUI.getShell(), SWT.POP_UP);
+    new MenuItem(menu, SWT.SEPARATOR);
 
+    if (projects.size() == 0)
+    {
+      ///////////////////////////////////////////////////////////////
+      // Platzhalter falls die Projekte noch nicht geladen wurden
+      MenuItem loading = new MenuItem(menu, SWT.PUSH);
+      loading.setText(i18n.tr("Projekte werden geladen..."));
+      //
       ///////////////////////////////////////////////////////////////
-      // Programm beenden
-      MenuItem shutdown = new MenuItem(menu, SWT.PUSH);
-      shutdown.setText("Programm beenden");
-      shutdown.addListener(SWT.Selection, new Listener()
+    }
+    else
+    {
+      ///////////////////////////////////////////////////////////////
+      // Suche ueber alle Aufgaben
+      MenuItem search = new MenuItem(menu, SWT.PUSH);
+      search.setText(i18n.tr("Aufgabe suchen..."));
+      search.addListener(SWT.Selection, new Listener()
       {
         public void handleEvent (Event e)
         {
+          menu.setVisible(false);
           try
           {
-            if (Application.getCallback().askUser(i18n.tr("Jameica wirklich beenden?")))
-              new FileClose().handleAction(null);
+            IssuePickerDialog d = new IssuePickerDialog(snapshot);
+            CompactIssue i = (CompactIssue) d.open();
+            if (i != null)
+              switchTimeEntry(i);
           }
           catch (OperationCanceledException oce)
           {
@@ -159,130 +269,310 @@ public class SysTray
           }
           catch (Exception e2)
           {
-            Logger.error("unable to shutdown",e2);
+            Logger.error("unable to open issue picker",e2);
           }
         }
       });
+      new MenuItem(menu, SWT.SEPARATOR);
       //
       ///////////////////////////////////////////////////////////////
-
-      new MenuItem(menu, SWT.SEPARATOR);
-
-      if (projects.size() == 0)
+      
+      ///////////////////////////////////////////////////////////////
+      // Angeheftete und zuletzt verwendete Aufgaben
+      if (this.createShortcuts(menu,snapshot))
+        new MenuItem(menu, SWT.SEPARATOR);
+      //
+      ///////////////////////////////////////////////////////////////
+      
+      ///////////////////////////////////////////////////////////////
+      // Liste der Projekte
+      for (ProjectTree p:projects)
       {
-        ///////////////////////////////////////////////////////////////
-        // Platzhalter falls die Projekte noch nicht geladen wurden
-        MenuItem loading = new MenuItem(menu, SWT.PUSH);
-        loading.setText(i18n.tr("Projekte werden geladen..."));
-        //
-        ///////////////////////////////////////////////////////////////
+        createMenu(p,menu,menu,snapshot);
       }
-      else
+      //
+      ///////////////////////////////////////////////////////////////
+      
+      ///////////////////////////////////////////////////////////////
+      // Menupunkt zum Anhalten des aktuellen Job anzeigen
+      if (current != null)
       {
-        ///////////////////////////////////////////////////////////////
-        // Liste der Projekte
-        for (ProjectTree p:projects)
+        new MenuItem(menu, SWT.SEPARATOR);
+        final MenuItem stop = new MenuItem(menu, SWT.PUSH);
+        stop.addListener(SWT.Selection, new Listener()
         {
-          createMenu(p,menu);
-        }
-        //
-        ///////////////////////////////////////////////////////////////
+          public void handleEvent (Event e)
+          {
+            stopCurrentTimeEntry();
+            refresh();
+            menu.setVisible(false);
+          }
+        });
         
-        ///////////////////////////////////////////////////////////////
-        // Menupunkt zum Anhalten des aktuellen Job anzeigen
-        final TimeEntry current = service.getCurrentTimeEntry();
-        if (current != null)
+        // Die Dauer bei jedem Anzeigen aktualisieren, da das Menu wiederverwendet wird
+        Listener label = new Listener()
         {
-          new MenuItem(menu, SWT.SEPARATOR);
-          MenuItem stop = new MenuItem(menu, SWT.PUSH);
-          stop.setText(i18n.tr("Aufgabe anhalten: [{0}] {1}",format.format(current),current.getComment()));
-          stop.addListener(SWT.Selection, new Listener()
+          public void handleEvent(Event event)
           {
-            public void handleEvent (Event e)
-            {
-              stopCurrentTimeEntry();
-              refresh();
-              menu.setVisible(false);
-              menu.dispose();
-            }
-          });
-        }
-        //
-        ///////////////////////////////////////////////////////////////
+            stop.setText(i18n.tr("Aufgabe anhalten: [{0}] {1}",format.format(current),current.getComment()));
+          }
+        };
+        label.handleEvent(null);
+        menu.addListener(SWT.Show,label);
+        
+        final Integer id = current.getIssueId();
+        final MenuItem pin = new MenuItem(menu, SWT.CHECK);
+        pin.setText(i18n.tr("Aufgabe oben anheften"));
+        pin.setSelection(service.getPinnedIssues().contains(id));
+        pin.addListener(SWT.Selection, new Listener()
+        {
+          public void handleEvent (Event e)
+          {
+            service.setPinned(id,pin.getSelection());
+            menuGeneration = -1L; // Beim naechsten Mal neu erzeugen
+          }
+        });
       }
+      //
+      ///////////////////////////////////////////////////////////////
       
-      // Menu anzeigen
-      menu.setVisible(true);
+      ///////////////////////////////////////////////////////////////
+      // Gesammelte Zeiterfassungen
+      if (commits.getBatch().size() > 0)
+      {
+        new MenuItem(menu, SWT.SEPARATOR);
+        this.createBatch(menu);
+      }
+      //
+      ///////////////////////////////////////////////////////////////
     }
-    catch (ApplicationException ae)
+    return menu;
+  }
+  
+  /**
+   * Erzeugt das Untermenu mit den gesammelten, noch nicht uebertragenen Zeiterfassungen.
+   * Da das Menu wiederverwendet wird, der Inhalt sich aber jederzeit durch die
+   * regelmaessige Uebertragung aendern kann, wird es bei jedem Anzeigen neu befuellt.
+   * @param menu das Hauptmenu.
+   */
+  private void createBatch(final Menu menu)
+  {
+    final MenuItem mi = new MenuItem(menu,SWT.CASCADE);
+    final Menu sub = new Menu(menu);
+    mi.setMenu(sub);
+    
+    Listener label = new Listener()
     {
-      Application.getMessagingFactory().sendMessage(new StatusBarMessage(ae.getMessage(),StatusBarMessage.TYPE_ERROR));
-      if (GUI.getShell().getMinimized())
+      public void handleEvent(Event event)
       {
-        try
+        mi.setText(i18n.tr("Gesammelte Zeiterfassungen ({0})",Integer.toString(commits.getBatch().size())));
+      }
+    };
+    label.handleEvent(null);
+    menu.addListener(SWT.Show,label);
+    
+    // Platzhalter, da manche Plattformen leere Untermenus gar nicht erst aufklappen
+    new MenuItem(sub,SWT.PUSH).setEnabled(false);
+    sub.addListener(SWT.Show,new Listener()
+    {
+      public void handleEvent(Event event)
+      {
+        for (MenuItem item:sub.getItems())
         {
-          Application.getCallback().notifyUser(ae.getMessage());
+          item.dispose();
         }
-        catch (Exception e)
+        
+        List<TimeEntry> entries = commits.getBatch();
+        if (entries.size() == 0)
+        {
+          MenuItem empty = new MenuItem(sub,SWT.PUSH);
+          empty.setText(i18n.tr("Keine gesammelten Zeiterfassungen"));
+          empty.setEnabled(false);
+          return;
+        }
+        
+        for (TimeEntry e:entries)
         {
-          Logger.error("unable to notify user",e);
+          int minutes = Math.round((e.getHours() != null ? e.getHours().floatValue() : 0f) * 60);
+          MenuItem item = new MenuItem(sub,SWT.PUSH);
+          item.setText(i18n.tr("[{0}] {1}",format.format(minutes),e.getComment()));
+          item.setEnabled(false);
         }
+        
+        new MenuItem(sub,SWT.SEPARATOR);
+        MenuItem flush = new MenuItem(sub,SWT.PUSH);
+        flush.setText(i18n.tr("Jetzt bertragen"));
+        flush.addListener(SWT.Selection,new Listener()
+        {
+          public void handleEvent(Event e)
+          {
+            commits.flush();
+            menuGeneration = -1L; // Beim naechsten Mal neu erzeugen
+            menu.setVisible(false);
+          }
+        });
       }
-    }
-    catch (Exception e)
-    {
-      Logger.error("unable to display menu",e);
-    }
+    });
   }
   
   /**
-   * Erzeugt rekursiv das Menu fuer das Projekt.
+   * Erzeugt den Menupunkt fuer das Projekt.
+   * Das Untermenu wird erst befuellt, wenn der User es aufklappt.
    * @param p das Projekt.
-   * @param menu das Hauptmenu.
-   * @throws ApplicationException
+   * @param menu das Menu, in dem der Menupunkt erzeugt wird.
+   * @param root das Hauptmenu.
+   * @param snapshot der Stand des Caches, aus dem das Menu erzeugt wird.
    */
-  private void createMenu(ProjectTree p, final Menu menu) throws ApplicationException
+  private void createMenu(final ProjectTree p, Menu menu, final Menu root, final CacheSnapshot snapshot)
   {
-    List<ProjectTree> children = p.getChildren();
-    List<Issue> issues = service.getIssues(p.getProject());
-    
     // Das Projekt ist leer. Nicht anzeigen
-    if (issues == null || issues.size() == 0 && children.size() == 0)
+    if (snapshot.getIssues(p.getProject()).size() == 0 && p.getChildren().size() == 0)
       return;
 
     MenuItem pm = new MenuItem(menu,SWT.CASCADE);
     pm.setData(p);
     pm.setText(p.getProject().getName());
-    Menu sub = new Menu(menu);
+    final Menu sub = new Menu(menu);
     pm.setMenu(sub);
-
-    // Erst die Kind-Projekte.
-    for (ProjectTree c:children)
+    
+    this.createLazy(sub,new Runnable() {
+      public void run()
+      {
+        // Erst die Kind-Projekte.
+        for (ProjectTree c:p.getChildren())
+        {
+          createMenu(c,sub,root,snapshot);
+        }
+        
+        // Jetzt die Issues.
+        createIssues(sub,root,snapshot.getIssues(p.getProject()),0);
+      }
+    });
+  }
+  
+  /**
+   * Erzeugt die Menupunkte fuer die Issues ab dem angegebenen Offset.
+   * Sind es mehr als MAX_ISSUES, wird der Rest in einem Untermenu "Weitere..." angezeigt,
+   * das ebenfalls erst beim Aufklappen befuellt wird.
+   * @param menu das Menu, in dem die Menupunkte erzeugt werden.
+   * @param root das Hauptmenu.
+   * @param issues die Issues.
+   * @param offset Position des ersten anzuzeigenden Issues.
+   */
+  private void createIssues(Menu menu, final Menu root, final List<CompactIssue> issues, final int offset)
+  {
+    int end = Math.min(issues.size(),offset + MAX_ISSUES);
+    for (int k=offset;k<end;++k)
     {
-      this.createMenu(c,sub);
+      this.createIssue(menu,root,issues.get(k));
     }
     
-    // Jetzt die Issues.
-    for (final Issue i:issues)
+    if (end >= issues.size())
+      return;
+    
+    final int next = end;
+    MenuItem more = new MenuItem(menu,SWT.CASCADE);
+    more.setText(i18n.tr("Weitere ({0})...",Integer.toString(issues.size() - next)));
+    final Menu sub = new Menu(menu);
+    more.setMenu(sub);
+    this.createLazy(sub,new Runnable() {
+      public void run()
+      {
+        createIssues(sub,root,issues,next);
+      }
+    });
+  }
+  
+  /**
+   * Erzeugt den Menupunkt fuer ein Issue.
+   * @param menu das Menu, in dem der Menupunkt erzeugt wird.
+   * @param root das Hauptmenu.
+   * @param i das Issue.
+   */
+  private void createIssue(Menu menu, final Menu root, final CompactIssue i)
+  {
+    final MenuItem mi = new MenuItem(menu,SWT.PUSH);
+    mi.setData(i);
+    mi.setText("#" + i.getId() + " " + i.getSubject());
+    mi.addListener(SWT.Selection, new Listener()
     {
-      final MenuItem mi = new MenuItem(sub,SWT.PUSH);
-      mi.setData(i);
-      mi.setText("#" + i.getId() + " " + i.getSubject());
-      mi.addListener(SWT.Selection, new Listener()
+      public void handleEvent (Event e)
       {
-        public void handleEvent (Event e)
-        {
-          // Erst den alten Job ggf. stoppen
-          if (stopCurrentTimeEntry())
-          {
-            // Jetzt einen neuen Job anlegen
-            startTimeEntry(i);
-            refresh();
-          }
-          menu.setVisible(false);
-          menu.dispose();
-        }
-      });
+        switchTimeEntry(i);
+        root.setVisible(false);
+      }
+    });
+  }
+  
+  /**
+   * Erzeugt die Menupunkte fuer die angehefteten und die zuletzt verwendeten Issues.
+   * Die Issues werden direkt per ID aus dem Cache geholt, der Aufwand ist daher
+   * unabhaengig von der Anzahl der Projekte und Issues.
+   * @param menu das Hauptmenu.
+   * @param snapshot der Stand des Caches, aus dem das Menu erzeugt wird.
+   * @return true, wenn Menupunkte erzeugt wurden.
+   */
+  private boolean createShortcuts(Menu menu, CacheSnapshot snapshot)
+  {
+    boolean found = false;
+    Set<Integer> done = new HashSet<Integer>();
+    List<Integer> ids = new ArrayList<Integer>(service.getPinnedIssues());
+    ids.addAll(service.getRecentIssues());
+    for (Integer id:ids)
+    {
+      if (!done.add(id))
+        continue; // Angeheftet und zuletzt verwendet
+      
+      // Issues, die nicht mehr im Cache sind (z.Bsp. weil sie inzwischen geschlossen
+      // wurden), lassen wir weg.
+      CompactIssue i = snapshot.getIssue(id);
+      if (i != null)
+      {
+        this.createIssue(menu,menu,i);
+        found = true;
+      }
+    }
+    return found;
+  }
+  
+  /**
+   * Sorgt dafuer, dass das Untermenu erst beim ersten Aufklappen befuellt wird.
+   * Bis dahin enthaelt es nur einen Platzhalter, da manche Plattformen leere Untermenus
+   * gar nicht erst aufklappen.
+   * @param sub das Untermenu.
+   * @param filler fuellt das Untermenu.
+   */
+  private void createLazy(final Menu sub, final Runnable filler)
+  {
+    final MenuItem placeholder = new MenuItem(sub,SWT.PUSH);
+    placeholder.setText(i18n.tr("Wird geladen..."));
+    placeholder.setEnabled(false);
+    
+    sub.addListener(SWT.Show,new Listener()
+    {
+      public void handleEvent(Event event)
+      {
+        if (placeholder.isDisposed())
+          return; // Schon befuellt
+        
+        placeholder.dispose();
+        filler.run();
+      }
+    });
+  }
+  
+  /**
+   * Stoppt den aktuellen Job und startet die Zeiterfassung fuer das Issue.
+   * @param issue das Issue.
+   */
+  private void switchTimeEntry(CompactIssue issue)
+  {
+    // Erst den alten Job ggf. stoppen
+    if (stopCurrentTimeEntry())
+    {
+      // Jetzt einen neuen Job anlegen
+      startTimeEntry(issue);
+      refresh();
     }
   }
   
@@ -302,9 +592,10 @@ public class SysTray
     {
       TimeEntryCommitDialog d = new TimeEntryCommitDialog(current);
       d.open();
-      service.commitCurrentTimeEntry();
+      service.updateCurrentTimeEntry();
       
-      Application.getMessagingFactory().sendMessage(new StatusBarMessage("Erfasste Stunden bernommen",StatusBarMessage.TYPE_SUCCESS));
+      // Die Uebertragung an den Server erfolgt im Hintergrund
+      commits.submit(service.finishCurrentTimeEntry());
       return true;
     }
     catch (DismissTimeEntryException de)
@@ -333,7 +624,7 @@ public class SysTray
    * Startet einen neuen Zeiterfassungsjob fuer das ausgewaehlte Issue.
    * @param issue
    */
-  private synchronized void startTimeEntry(Issue issue)
+  private synchronized void startTimeEntry(CompactIssue issue)
   {
     try
     {
@@ -358,14 +649,21 @@ public class SysTray
         {
           ClassLoader cl = Application.getPluginLoader().getManifest(Plugin.class).getClassLoader();
           TimeEntry current = service.getCurrentTimeEntry();
+          
+          // Blockiert nicht, da hierfuer keine Server-Abfrage noetig ist
+          String offline = service.isOffline() ? "\n" + i18n.tr("Redmine nicht erreichbar (offline)") : "";
           if (current != null)
           {
-            item.setToolTipText(i18n.tr("[{0}] {1}",new String[]{format.format(current),current.getComment()}));
+            item.setToolTipText(i18n.tr("[{0}] {1}",new String[]{format.format(current),current.getComment()}) + offline);
             item.setImage(SWTUtil.getImage("work.png",cl));
           }
           else
           {
-            item.setToolTipText("Keine laufende Zeiterfassung");
+            Date next = reload.getNextReload();
+            if (next != null)
+              item.setToolTipText(i18n.tr("Keine laufende Zeiterfassung\nNchste Aktualisierung: {0}",new SimpleDateFormat("HH:mm").format(next)) + offline);
+            else
+              item.setToolTipText("Keine laufende Zeiterfassung" + offline);
             item.setImage(SWTUtil.getImage("clock.png",cl));
           }
         }
@@ -0,0 +1,254 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.gui.dialogs;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+
+import de.willuhn.jameica.gui.Action;
+import de.willuhn.jameica.gui.GUI;
+import de.willuhn.jameica.gui.dialogs.AbstractDialog;
+import de.willuhn.jameica.gui.input.TextInput;
+import de.willuhn.jameica.gui.parts.ButtonArea;
+import de.willuhn.jameica.gui.util.Container;
+import de.willuhn.jameica.gui.util.SWTUtil;
+import de.willuhn.jameica.gui.util.SimpleContainer;
+import de.willuhn.jameica.redmine.Plugin;
+import de.willuhn.jameica.redmine.beans.CompactIssue;
+import de.willuhn.jameica.redmine.beans.ProjectTree;
+import de.willuhn.jameica.redmine.service.CacheSnapshot;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Dialog zur Auswahl einer Aufgabe aus dem Cache.
+ * Die Tabelle ist virtuell, es werden also nur die Zeilen erzeugt, die tatsaechlich
+ * sichtbar sind. Damit bleibt der Dialog auch bei sehr vielen Aufgaben bedienbar.
+ */
+public class IssuePickerDialog extends AbstractDialog
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+
+  private final static int WINDOW_WIDTH  = 700;
+  private final static int WINDOW_HEIGHT = 500;
+
+  /**
+   * Maximale Anzahl der Treffer bei der Suche.
+   */
+  private final static int MAX_RESULTS = 1000;
+
+  /**
+   * Wartezeit in Millisekunden nach dem letzten Tastendruck, bevor gesucht wird.
+   */
+  private final static int SEARCH_DELAY = 150;
+
+  private CacheSnapshot snapshot = null;
+  private Map<Integer,String> names = new HashMap<Integer,String>();
+  private List<CompactIssue> rows = null;
+
+  private TextInput search = null;
+  private Table table = null;
+  private CompactIssue selected = null;
+
+  private final Runnable filter = new Runnable() {
+    public void run()
+    {
+      filter();
+    }
+  };
+
+  /**
+   * ct.
+   * @param snapshot der Stand des Caches, aus dem die Aufgaben angezeigt werden.
+   */
+  public IssuePickerDialog(CacheSnapshot snapshot)
+  {
+    super(POSITION_CENTER,true);
+    this.setTitle(i18n.tr("Aufgabe auswhlen"));
+    this.setSize(WINDOW_WIDTH,WINDOW_HEIGHT);
+    this.snapshot = snapshot;
+    this.rows = snapshot.getIssues();
+    this.collect(snapshot.getProjects(),null);
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.dialogs.AbstractDialog#createShell(org.eclipse.swt.widgets.Shell, int)
+   */
+  @Override
+  protected Shell createShell(Shell parent, int flags)
+  {
+    // Wir erzeugen eine Shell ohne Parent, damit das Fenster dediziert angezeigt werden kann,
+    // ohne dass das Hauptfenster erscheint
+    Shell shell = super.createShell(null, flags);
+    shell.setImage(SWTUtil.getImage("clock.png"));
+    return shell;
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.dialogs.AbstractDialog#paint(org.eclipse.swt.widgets.Composite)
+   */
+  @Override
+  protected void paint(Composite parent) throws Exception
+  {
+    Container group = new SimpleContainer(parent);
+    group.addText(i18n.tr("Suchen Sie nach der Nummer (#1234) oder nach Wrtern aus dem Titel oder dem Projekt-Namen."),true);
+    group.addInput(this.getSearch());
+
+    // Das Control gibt es erst nach dem Zeichnen. Beim schnellen Tippen wird nur
+    // einmal gesucht, wenn fuer eine kurze Zeit keine weitere Eingabe kam
+    this.getSearch().getControl().addListener(SWT.Modify,new Listener() {
+      public void handleEvent(Event event)
+      {
+        GUI.getDisplay().timerExec(-1,filter);
+        GUI.getDisplay().timerExec(SEARCH_DELAY,filter);
+      }
+    });
+
+    this.table = new Table(parent,SWT.VIRTUAL | SWT.BORDER | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL);
+    this.table.setLayoutData(new GridData(GridData.FILL_BOTH));
+    this.table.setHeaderVisible(true);
+    this.table.setLinesVisible(true);
+
+    TableColumn id = new TableColumn(this.table,SWT.LEFT);
+    id.setText(i18n.tr("Nr."));
+    id.setWidth(70);
+    TableColumn subject = new TableColumn(this.table,SWT.LEFT);
+    subject.setText(i18n.tr("Aufgabe"));
+    subject.setWidth(380);
+    TableColumn project = new TableColumn(this.table,SWT.LEFT);
+    project.setText(i18n.tr("Projekt"));
+    project.setWidth(200);
+
+    // Die Zeilen werden erst befuellt, wenn sie sichtbar werden
+    this.table.addListener(SWT.SetData,new Listener() {
+      public void handleEvent(Event event)
+      {
+        TableItem item = (TableItem) event.item;
+        CompactIssue i = rows.get(event.index);
+        String name = names.get(i.getProjectId());
+        item.setText(new String[]{"#" + i.getId(),i.getSubject(),name != null ? name : ""});
+        item.setData(i);
+      }
+    });
+
+    // Doppelklick bzw. Enter startet die Zeiterfassung
+    this.table.addListener(SWT.DefaultSelection,new Listener() {
+      public void handleEvent(Event event)
+      {
+        apply();
+      }
+    });
+    this.table.setItemCount(this.rows.size());
+
+    ButtonArea b = new ButtonArea();
+    b.addButton(i18n.tr("Zeiterfassung starten"), new Action()
+    {
+      public void handleAction(Object context) throws ApplicationException
+      {
+        apply();
+      }
+    },null,true,"ok.png");
+    b.addButton(i18n.tr("Abbrechen"), new Action()
+    {
+      public void handleAction(Object context) throws ApplicationException
+      {
+        throw new OperationCanceledException();
+      }
+    },null,false,"process-stop.png");
+
+    Container buttons = new SimpleContainer(parent);
+    buttons.addButtonArea(b);
+
+    this.getSearch().focus();
+  }
+
+  /**
+   * @see de.willuhn.jameica.gui.dialogs.AbstractDialog#getData()
+   */
+  @Override
+  protected Object getData() throws Exception
+  {
+    return this.selected;
+  }
+
+  /**
+   * Liefert das Eingabefeld fuer die Suche.
+   * @return das Eingabefeld fuer die Suche.
+   */
+  private TextInput getSearch()
+  {
+    if (this.search != null)
+      return this.search;
+
+    this.search = new TextInput(null);
+    this.search.setName(i18n.tr("Suche"));
+    return this.search;
+  }
+
+  /**
+   * Filtert die Tabelle anhand des aktuellen Suchbegriffs.
+   */
+  private void filter()
+  {
+    if (this.table == null || this.table.isDisposed())
+      return;
+
+    String query = (String) this.getSearch().getValue();
+    this.rows = StringUtils.isBlank(query) ? this.snapshot.getIssues() : this.snapshot.search(query,MAX_RESULTS);
+
+    // Die sichtbaren Zeilen werden via SWT.SetData neu befuellt
+    this.table.setItemCount(this.rows.size());
+    this.table.clearAll();
+    if (this.rows.size() > 0)
+      this.table.setSelection(0);
+  }
+
+  /**
+   * Uebernimmt die ausgewaehlte Aufgabe und schliesst den Dialog.
+   */
+  private void apply()
+  {
+    int index = this.table.getSelectionIndex();
+    if (index < 0 || index >= this.rows.size())
+      return;
+
+    this.selected = this.rows.get(index);
+    close();
+  }
+
+  /**
+   * Ermittelt rekursiv die Namen der Projekte inclusive der Eltern-Projekte.
+   * @param projects die Projekte.
+   * @param parent der Name des Eltern-Projektes. Kann NULL sein.
+   */
+  private void collect(List<ProjectTree> projects, String parent)
+  {
+    for (ProjectTree p:projects)
+    {
+      String name = parent != null ? (parent + " / " + p.getProject().getName()) : p.getProject().getName();
+      this.names.put(p.getProject().getId(),name);
+      this.collect(p.getChildren(),name);
+    }
+  }
+}
+
+
@@ -0,0 +1,133 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import de.willuhn.logging.Logger;
+
+/**
+ * Erlaubt das Abbrechen einer laengeren Aktion, die aus mehreren Requests besteht.
+ * Die Aktion wird abgebrochen, wenn {@link #cancel()} aufgerufen wird oder die
+ * Frist abgelaufen ist. Gerade laufende Requests werden dabei sofort abgebrochen,
+ * weitere werden gar nicht erst gesendet.
+ * Das Token wird per {@link #bind()} an den aktuellen Thread gebunden und von
+ * {@link ManagedHttpClient} bei jedem Request beruecksichtigt.
+ */
+public class CancellationToken
+{
+  private final static ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>();
+
+  private final long deadline;
+  private final Set<HttpUriRequest> requests = new HashSet<HttpUriRequest>();
+  private volatile boolean cancelled = false;
+
+  /**
+   * ct.
+   * @param timeout die Frist in Millisekunden, nach der die Aktion abgebrochen wird.
+   */
+  public CancellationToken(long timeout)
+  {
+    this.deadline = System.currentTimeMillis() + timeout;
+  }
+
+  /**
+   * Liefert das an den aktuellen Thread gebundene Token.
+   * @return das Token oder NULL, wenn keines gebunden ist.
+   */
+  public static CancellationToken current()
+  {
+    return current.get();
+  }
+
+  /**
+   * Bindet das Token an den aktuellen Thread.
+   */
+  public void bind()
+  {
+    current.set(this);
+  }
+
+  /**
+   * Loest das Token wieder vom aktuellen Thread.
+   */
+  public void unbind()
+  {
+    current.remove();
+  }
+
+  /**
+   * Bricht die Aktion ab. Gerade laufende Requests werden sofort abgebrochen.
+   */
+  public void cancel()
+  {
+    this.cancelled = true;
+
+    HttpUriRequest[] list = null;
+    synchronized (this.requests)
+    {
+      list = this.requests.toArray(new HttpUriRequest[this.requests.size()]);
+    }
+    for (HttpUriRequest r:list)
+    {
+      Logger.info("aborting request " + r.getURI());
+      r.abort();
+    }
+  }
+
+  /**
+   * Prueft, ob die Aktion abgebrochen wurde oder die Frist abgelaufen ist.
+   * @return true, wenn die Aktion abgebrochen werden soll.
+   */
+  public boolean isCancelled()
+  {
+    return this.cancelled || this.getRemaining() <= 0L;
+  }
+
+  /**
+   * Liefert die bis zum Ablauf der Frist verbleibende Zeit.
+   * @return die verbleibende Zeit in Millisekunden.
+   */
+  public long getRemaining()
+  {
+    return this.deadline - System.currentTimeMillis();
+  }
+
+  /**
+   * Registriert einen laufenden Request, damit er beim Abbruch mit abgebrochen werden kann.
+   * @param request der Request.
+   */
+  void register(HttpUriRequest request)
+  {
+    synchronized (this.requests)
+    {
+      this.requests.add(request);
+    }
+
+    // Falls der Abbruch genau zwischen Pruefung und Registrierung kam
+    if (this.cancelled)
+      request.abort();
+  }
+
+  /**
+   * Entfernt den Request nach seinem Ende wieder.
+   * @param request der Request.
+   */
+  void unregister(HttpUriRequest request)
+  {
+    synchronized (this.requests)
+    {
+      this.requests.remove(request);
+    }
+  }
+}
+
+
@@ -0,0 +1,158 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import de.willuhn.jameica.messaging.QueryMessage;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.logging.Logger;
+
+/**
+ * Schuetzt vor langen Wartezeiten, wenn der Server nicht erreichbar ist.
+ * Nach mehreren Verbindungsfehlern in Folge wird der Schalter geoeffnet. Requests
+ * werden dann gar nicht erst gesendet, sondern schlagen sofort fehl. Nach einer
+ * Wartezeit darf genau ein Request als Test durch. Klappt er, wird der Schalter
+ * wieder geschlossen, sonst bleibt er fuer die naechste Wartezeit offen.
+ * Bei jeder Aenderung des Zustandes wird eine {@link QueryMessage} verschickt,
+ * damit die Anzeige aktualisiert werden kann.
+ */
+public class CircuitBreaker
+{
+  /**
+   * Die moeglichen Zustaende.
+   */
+  public enum State
+  {
+    /**
+     * Requests werden normal gesendet.
+     */
+    CLOSED,
+
+    /**
+     * Requests schlagen sofort fehl.
+     */
+    OPEN,
+
+    /**
+     * Ein einzelner Test-Request laeuft, alle anderen schlagen sofort fehl.
+     */
+    HALF_OPEN
+  }
+
+  /**
+   * Anzahl der Verbindungsfehler in Folge, nach denen der Schalter geoeffnet wird.
+   */
+  private final static int THRESHOLD = 3;
+
+  /**
+   * Wartezeit in Millisekunden, bis nach dem Oeffnen wieder ein Test-Request gesendet wird.
+   */
+  private final static long OPEN_TIME = 30 * 1000L;
+
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long openUntil = 0L;
+
+  /**
+   * Liefert den aktuellen Zustand.
+   * @return der aktuelle Zustand.
+   */
+  public synchronized State getState()
+  {
+    return this.state;
+  }
+
+  /**
+   * Prueft, ob der Schalter offen ist, der Server also derzeit als nicht erreichbar gilt.
+   * @return true, wenn der Schalter offen ist oder gerade ein Test-Request laeuft.
+   */
+  public synchronized boolean isOpen()
+  {
+    return this.state != State.CLOSED;
+  }
+
+  /**
+   * Prueft, ob ein Request gesendet werden darf.
+   * Ist die Wartezeit abgelaufen, wird der Aufrufer zum Test-Request.
+   * @return true, wenn der Request gesendet werden darf.
+   */
+  boolean acquire()
+  {
+    synchronized (this)
+    {
+      if (this.state == State.CLOSED)
+        return true;
+
+      if (this.state == State.HALF_OPEN || System.currentTimeMillis() < this.openUntil)
+        return false;
+
+      this.state = State.HALF_OPEN;
+    }
+    this.publish(State.HALF_OPEN);
+    return true;
+  }
+
+  /**
+   * Registriert eine Antwort des Servers ohne Server-Fehler. Der Schalter wird geschlossen.
+   */
+  void success()
+  {
+    synchronized (this)
+    {
+      this.failures = 0;
+      if (this.state == State.CLOSED)
+        return;
+      this.state = State.CLOSED;
+    }
+    this.publish(State.CLOSED);
+  }
+
+  /**
+   * Registriert einen Verbindungsfehler oder einen Server-Fehler (5xx). Nach zu vielen Fehlern in Folge oder einem
+   * fehlgeschlagenen Test-Request wird der Schalter geoeffnet.
+   */
+  void failure()
+  {
+    synchronized (this)
+    {
+      this.failures++;
+      if (this.state == State.CLOSED && this.failures < THRESHOLD)
+        return;
+
+      this.openUntil = System.currentTimeMillis() + OPEN_TIME;
+      if (this.state == State.OPEN)
+        return;
+      this.state = State.OPEN;
+    }
+    this.publish(State.OPEN);
+  }
+
+  /**
+   * Registriert einen Request, der ohne Ergebnis beendet wurde, etwa weil er abgebrochen wurde.
+   * War es der Test-Request, darf der naechste Request sofort einen neuen Test machen.
+   */
+  synchronized void release()
+  {
+    if (this.state != State.HALF_OPEN)
+      return;
+
+    this.state = State.OPEN;
+    this.openUntil = 0L;
+  }
+
+  /**
+   * Protokolliert den neuen Zustand und verschickt ihn per Messaging.
+   * @param state der neue Zustand.
+   */
+  private void publish(State state)
+  {
+    Logger.info("circuit breaker state changed to " + state);
+    Application.getMessagingFactory().sendMessage(new QueryMessage(state));
+  }
+}
+
+
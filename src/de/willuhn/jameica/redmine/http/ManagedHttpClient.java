@@ -0,0 +1,220 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import de.willuhn.jameica.redmine.http.RateLimiter.Priority;
+
+/**
+ * HTTP-Client, der von der Redmine-API verwendet wird und alle Requests an
+ * den eigentlichen HTTP-Client durchreicht. Er ist die zentrale Stelle, an
+ * der alle Requests zum Redmine-Server vorbeikommen.
+ * GET-Requests werden ueber den {@link ResponseCache} als bedingte Requests gesendet.
+ * Ist der Server nicht erreichbar, schlagen Requests ueber den {@link CircuitBreaker} sofort fehl.
+ * Die Anzahl der Requests pro Sekunde wird ueber den {@link RateLimiter} begrenzt.
+ */
+public class ManagedHttpClient extends CloseableHttpClient
+{
+  private CloseableHttpClient client = null;
+  private RequestStatistics stats = null;
+  private CircuitBreaker breaker = null;
+  private RateLimiter limiter = null;
+  private RequestConfig config = null;
+  private ResponseCache cache = new ResponseCache();
+  
+  /**
+   * ct.
+   * @param client der eigentliche HTTP-Client.
+   * @param stats die Statistik, in der die Requests gezaehlt werden.
+   * @param breaker der Schalter, der bei nicht erreichbarem Server die Requests sofort abweist.
+   * @param limiter der Limiter fuer die Anzahl der Requests pro Sekunde.
+   * @param config die im HTTP-Client eingestellte Default-Konfiguration der Requests.
+   */
+  public ManagedHttpClient(CloseableHttpClient client, RequestStatistics stats, CircuitBreaker breaker, RateLimiter limiter, RequestConfig config)
+  {
+    this.client  = client;
+    this.stats   = stats;
+    this.breaker = breaker;
+    this.limiter = limiter;
+    this.config  = config;
+  }
+
+  /**
+   * @see org.apache.http.impl.client.CloseableHttpClient#doExecute(org.apache.http.HttpHost, org.apache.http.HttpRequest, org.apache.http.protocol.HttpContext)
+   */
+  @Override
+  protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException
+  {
+    // Wurde die Aktion inzwischen abgebrochen, senden wir den Request gar nicht erst
+    CancellationToken token = CancellationToken.current();
+    if (token != null && token.isCancelled())
+      throw new InterruptedIOException("request cancelled");
+    
+    // Der Server gilt als nicht erreichbar. Nicht erst auf den Timeout warten.
+    // Das pruefen wir vor dem Limiter, damit abgewiesene Requests kein Token verbrauchen.
+    if (!this.breaker.acquire())
+      throw new IOException("server considered unavailable, request not sent");
+    
+    // Requests mit Token gehoeren zu einem Reload und laufen im Hintergrund.
+    // Alle anderen hat der User ausgeloest, die haben Vorrang.
+    try
+    {
+      this.limiter.acquire(token != null ? Priority.BACKGROUND : Priority.INTERACTIVE,token);
+    }
+    catch (InterruptedIOException e)
+    {
+      // Der Request wird nicht gesendet. War es der Test-Request, darf der naechste testen
+      this.breaker.release();
+      throw e;
+    }
+    
+    HttpRequestBase abortable = (token != null && request instanceof HttpRequestBase) ? (HttpRequestBase) request : null;
+    if (abortable != null)
+    {
+      // Der Request darf nicht laenger dauern als die verbleibende Frist. Die restliche
+      // Konfiguration des Requests bzw. des HTTP-Clients bleibt dabei erhalten.
+      RequestConfig base = abortable.getConfig() != null ? abortable.getConfig() : this.config;
+      int remaining = (int) Math.max(1L,Math.min(Integer.MAX_VALUE,token.getRemaining()));
+      abortable.setConfig(RequestConfig.copy(base)
+          .setConnectTimeout(this.limit(base.getConnectTimeout(),remaining))
+          .setSocketTimeout(this.limit(base.getSocketTimeout(),remaining))
+          .build());
+      token.register(abortable);
+    }
+    
+    String key = this.cache.getKey(target,request);
+    ResponseCache.Entry cached = key != null ? this.cache.prepare(key,request) : null;
+    
+    this.stats.countRequest();
+    boolean settled = false;
+    try
+    {
+      CloseableHttpResponse response = this.client.execute(target,request,context);
+      settled = true;
+      
+      // 5xx kommt typischerweise vom Proxy vor dem Redmine (502, 503, 504) oder von
+      // einem ueberlasteten Server. Das behandeln wir wie einen Verbindungsfehler. Die
+      // Redmine-API meldet ihn dann als RedmineTransportException, die Aktion kann also
+      // spaeter wiederholt werden.
+      if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+      {
+        response.close();
+        throw new IOException("server error: " + response.getStatusLine());
+      }
+      
+      this.stats.countResponse();
+      this.breaker.success();
+      
+      if (key == null)
+        return response;
+      
+      if (cached != null)
+      {
+        this.stats.countRevalidation();
+        CloseableHttpResponse r = this.cache.revalidated(cached,response);
+        if (r != null)
+        {
+          this.stats.countCacheHit();
+          return r;
+        }
+      }
+      
+      this.stats.countCacheMiss();
+      try
+      {
+        this.cache.store(key,response);
+      }
+      catch (IOException e)
+      {
+        response.close();
+        throw e;
+      }
+      return response;
+    }
+    catch (ClientProtocolException e)
+    {
+      // Das ist kein Verbindungsfehler
+      throw e;
+    }
+    catch (IOException e)
+    {
+      // Ein abgebrochener Request bedeutet nicht, dass der Server nicht erreichbar ist
+      if (token == null || !token.isCancelled())
+      {
+        this.stats.countFailure();
+        this.breaker.failure();
+        settled = true;
+      }
+      throw e;
+    }
+    finally
+    {
+      if (!settled)
+        this.breaker.release();
+      if (abortable != null)
+        token.unregister(abortable);
+    }
+  }
+
+  /**
+   * Begrenzt den Timeout auf die verbleibende Frist.
+   * @param timeout der eingestellte Timeout in Millisekunden. 0 oder negativ fuer unbegrenzt.
+   * @param remaining die verbleibende Frist in Millisekunden.
+   * @return der zu verwendende Timeout in Millisekunden.
+   */
+  private int limit(int timeout, int remaining)
+  {
+    return timeout > 0 ? Math.min(timeout,remaining) : remaining;
+  }
+
+  /**
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException
+  {
+    this.client.close();
+  }
+
+  /**
+   * Abstrakt in {@link CloseableHttpClient}, muss daher trotz Deprecation implementiert werden.
+   * @see org.apache.http.client.HttpClient#getParams()
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  public HttpParams getParams()
+  {
+    return this.client.getParams();
+  }
+
+  /**
+   * @see org.apache.http.client.HttpClient#getConnectionManager()
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  public ClientConnectionManager getConnectionManager()
+  {
+    return this.client.getConnectionManager();
+  }
+}
+
+
@@ -0,0 +1,251 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Begrenzt die Anzahl der Requests pro Sekunde, die an den Server gesendet werden.
+ * Arbeitet nach dem Token-Bucket-Verfahren: Pro Request wird ein Token verbraucht,
+ * die Tokens fuellen sich mit der eingestellten Rate wieder auf. Ungenutzte Tokens
+ * werden fuer hoechstens eine Sekunde angespart.
+ * Fuer Requests im Hintergrund gibt es ein zusaetzliches, eigenes Budget. Ausserdem
+ * muessen sie warten, solange ein interaktiver Request auf ein Token wartet. Eine
+ * Aktion des Users kommt dadurch immer vor den Requests eines laufenden Reload dran.
+ */
+public class RateLimiter
+{
+  /**
+   * Die Prioritaet eines Requests.
+   */
+  public enum Priority
+  {
+    /**
+     * Vom User ausgeloester Request. Hat Vorrang.
+     */
+    INTERACTIVE,
+
+    /**
+     * Request im Hintergrund, z.Bsp. beim Neuladen des Caches.
+     */
+    BACKGROUND
+  }
+
+  /**
+   * Zeitraum in Millisekunden, ueber den der Durchsatz ermittelt wird.
+   */
+  private final static long WINDOW = 60 * 1000L;
+
+  private final Bucket total      = new Bucket();
+  private final Bucket background = new Bucket();
+  private int interactiveWaiting  = 0;
+
+  private final LinkedList<Long> recent = new LinkedList<Long>();
+  private final long[] count     = new long[Priority.values().length];
+  private final long[] waitTime  = new long[Priority.values().length];
+
+  /**
+   * Stellt die Raten ein. Der Vorrat an Tokens bleibt dabei erhalten.
+   * @param rate die maximale Anzahl der Requests pro Sekunde insgesamt. 0 fuer unbegrenzt.
+   * @param backgroundRate die maximale Anzahl der Requests pro Sekunde im Hintergrund. 0 fuer unbegrenzt.
+   */
+  public synchronized void configure(int rate, int backgroundRate)
+  {
+    this.total.configure(rate);
+    this.background.configure(backgroundRate);
+    this.notifyAll();
+  }
+
+  /**
+   * Wartet, bis der Request gesendet werden darf.
+   * @param priority die Prioritaet des Requests.
+   * @param token optionales Token. Wird die Aktion abgebrochen, wird nicht weiter gewartet.
+   * @throws InterruptedIOException wenn das Warten unterbrochen oder die Aktion abgebrochen wurde.
+   */
+  void acquire(Priority priority, CancellationToken token) throws InterruptedIOException
+  {
+    boolean interactive = priority == Priority.INTERACTIVE;
+    long started = System.currentTimeMillis();
+    long waited = 0L;
+
+    synchronized (this)
+    {
+      if (interactive)
+        this.interactiveWaiting++;
+      try
+      {
+        while (true)
+        {
+          long now = System.currentTimeMillis();
+          this.total.refill(now);
+          this.background.refill(now);
+
+          boolean blocked = !interactive && this.interactiveWaiting > 0;
+          if (!blocked && this.total.available() && (interactive || this.background.available()))
+          {
+            this.total.take();
+            if (!interactive)
+              this.background.take();
+            break;
+          }
+
+          if (token != null && token.isCancelled())
+            throw new InterruptedIOException("request cancelled");
+
+          // Hintergrund-Requests werden per notifyAll geweckt, sobald der interaktive Request durch ist
+          long delay = Math.max(this.total.getDelay(),interactive ? 0L : this.background.getDelay());
+          this.wait(blocked ? 100L : Math.max(1L,delay));
+        }
+
+        waited = System.currentTimeMillis() - started;
+        this.count[priority.ordinal()]++;
+        this.waitTime[priority.ordinal()] += waited;
+        this.recent.add(Long.valueOf(System.currentTimeMillis()));
+        this.trim();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for rate limiter");
+      }
+      finally
+      {
+        if (interactive)
+        {
+          this.interactiveWaiting--;
+          this.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Liefert den aktuellen Durchsatz.
+   * @return die Anzahl der Requests in der letzten Minute.
+   */
+  public synchronized int getThroughput()
+  {
+    this.trim();
+    return this.recent.size();
+  }
+
+  /**
+   * Liefert die Anzahl der Requests mit dieser Prioritaet, die den Limiter bisher passiert haben.
+   * @param priority die Prioritaet.
+   * @return die Anzahl der Requests.
+   */
+  public synchronized long getRequestCount(Priority priority)
+  {
+    return this.count[priority.ordinal()];
+  }
+
+  /**
+   * Liefert die Zeit, die Requests mit dieser Prioritaet bisher insgesamt auf den Limiter gewartet haben.
+   * Aufrufer koennen sich den Wert vor und nach einer Aktion merken, um die Wartezeit dieser Aktion zu ermitteln.
+   * @param priority die Prioritaet.
+   * @return die Wartezeit in Millisekunden.
+   */
+  public synchronized long getWaitTime(Priority priority)
+  {
+    return this.waitTime[priority.ordinal()];
+  }
+
+  /**
+   * Entfernt die Zeitpunkte, die nicht mehr fuer den Durchsatz zaehlen.
+   */
+  private void trim()
+  {
+    long limit = System.currentTimeMillis() - WINDOW;
+    Iterator<Long> it = this.recent.iterator();
+    while (it.hasNext() && it.next().longValue() < limit)
+      it.remove();
+  }
+
+  /**
+   * Ein einzelner Token-Bucket.
+   */
+  private static class Bucket
+  {
+    private int rate       = 0;
+    private double tokens  = 0d;
+    private long updated   = 0L;
+
+    /**
+     * Stellt die Rate ein.
+     * @param rate die Anzahl der Tokens pro Sekunde. 0 fuer unbegrenzt.
+     */
+    private void configure(int rate)
+    {
+      if (rate == this.rate)
+        return;
+
+      // Bei der ersten Einstellung bzw. nach "unbegrenzt" mit vollem Vorrat beginnen
+      if (this.rate <= 0)
+        this.tokens = rate;
+
+      this.rate = rate;
+      this.tokens = Math.min(this.tokens,this.getCapacity());
+      this.updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Fuellt die Tokens entsprechend der vergangenen Zeit auf.
+     * @param now der aktuelle Zeitpunkt.
+     */
+    private void refill(long now)
+    {
+      if (this.rate <= 0)
+        return;
+
+      this.tokens = Math.min(this.getCapacity(),this.tokens + (now - this.updated) * this.rate / 1000d);
+      this.updated = now;
+    }
+
+    /**
+     * Prueft, ob ein Token verfuegbar ist.
+     * @return true, wenn ein Token verfuegbar ist.
+     */
+    private boolean available()
+    {
+      return this.rate <= 0 || this.tokens >= 1d;
+    }
+
+    /**
+     * Verbraucht ein Token.
+     */
+    private void take()
+    {
+      if (this.rate > 0)
+        this.tokens -= 1d;
+    }
+
+    /**
+     * Liefert die Wartezeit bis zum naechsten Token.
+     * @return die Wartezeit in Millisekunden.
+     */
+    private long getDelay()
+    {
+      if (this.available())
+        return 0L;
+      return (long) Math.ceil((1d - this.tokens) * 1000d / this.rate);
+    }
+
+    /**
+     * Liefert die maximale Anzahl der angesparten Tokens.
+     * @return die maximale Anzahl der Tokens.
+     */
+    private double getCapacity()
+    {
+      return Math.max(1d,this.rate);
+    }
+  }
+}
+
+
@@ -0,0 +1,134 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Zaehlt die HTTP-Requests, die an den Redmine-Server gesendet wurden.
+ * Ausserdem wird hier vermerkt, ob der Server beim letzten Request erreichbar war
+ * und wie oft Antworten aus dem {@link ResponseCache} verwendet werden konnten.
+ */
+public class RequestStatistics
+{
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private volatile boolean reachable = true;
+  
+  /**
+   * Registriert einen ausgefuehrten Request.
+   */
+  void countRequest()
+  {
+    this.requests.incrementAndGet();
+  }
+  
+  /**
+   * Registriert eine Antwort des Servers. Der Server gilt damit wieder als erreichbar.
+   */
+  void countResponse()
+  {
+    this.reachable = true;
+  }
+  
+  /**
+   * Registriert einen Request, auf den der Server wegen eines Verbindungsfehlers nicht
+   * oder mit einem Server-Fehler (5xx) geantwortet hat.
+   */
+  void countFailure()
+  {
+    this.failures.incrementAndGet();
+    this.reachable = false;
+  }
+  
+  /**
+   * Registriert einen bedingten Request fuer eine bereits gespeicherte Antwort.
+   */
+  void countRevalidation()
+  {
+    this.revalidations.incrementAndGet();
+  }
+  
+  /**
+   * Registriert eine Antwort, die unveraendert war und aus dem Cache geliefert wurde.
+   */
+  void countCacheHit()
+  {
+    this.hits.incrementAndGet();
+  }
+  
+  /**
+   * Registriert einen GET-Request, dessen Antwort komplett vom Server uebertragen wurde.
+   */
+  void countCacheMiss()
+  {
+    this.misses.incrementAndGet();
+  }
+  
+  /**
+   * Liefert die Anzahl der bisher ausgefuehrten Requests.
+   * Aufrufer koennen sich den Wert vor und nach einer Aktion merken,
+   * um die Anzahl der Requests dieser Aktion zu ermitteln.
+   * @return die Anzahl der bisher ausgefuehrten Requests.
+   */
+  public long getRequestCount()
+  {
+    return this.requests.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der bisher fehlgeschlagenen Requests.
+   * @return die Anzahl der bisher fehlgeschlagenen Requests.
+   */
+  public long getFailureCount()
+  {
+    return this.failures.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der Antworten, die unveraendert waren und aus dem Cache geliefert wurden.
+   * @return die Anzahl der Cache-Treffer.
+   */
+  public long getCacheHitCount()
+  {
+    return this.hits.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der GET-Requests, deren Antwort komplett vom Server uebertragen wurde.
+   * @return die Anzahl der Cache-Fehlschlaege.
+   */
+  public long getCacheMissCount()
+  {
+    return this.misses.get();
+  }
+  
+  /**
+   * Liefert die Anzahl der bedingten Requests fuer bereits gespeicherte Antworten.
+   * Das ist die Summe aus Treffern und den Antworten, die sich inzwischen geaendert hatten.
+   * @return die Anzahl der bedingten Requests.
+   */
+  public long getRevalidationCount()
+  {
+    return this.revalidations.get();
+  }
+  
+  /**
+   * Prueft, ob der Server beim letzten Request erreichbar war.
+   * @return true, wenn der Server erreichbar war oder noch kein Request gesendet wurde.
+   */
+  public boolean isServerReachable()
+  {
+    return this.reachable;
+  }
+}
+
+
@@ -0,0 +1,271 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Speichert die Antworten von GET-Requests zusammen mit ETag bzw. Last-Modified.
+ * Wird die gleiche URL erneut abgerufen, wird der Request als bedingter Request
+ * gesendet. Antwortet der Server mit "304 Not Modified", wird die gespeicherte
+ * Antwort geliefert, ohne dass sie erneut uebertragen werden muss.
+ * Die Antworten werden im Speicher gehalten. Werden es zu viele, fliegen die am
+ * laengsten nicht mehr abgerufenen raus.
+ */
+class ResponseCache
+{
+  /**
+   * Maximale Groesse einer einzelnen Antwort, die noch gespeichert wird.
+   */
+  private final static int MAX_ENTRY = 1024 * 1024;
+
+  /**
+   * Maximale Groesse aller gespeicherten Antworten zusammen.
+   */
+  private final static long MAX_SIZE = 16 * 1024 * 1024L;
+
+  /**
+   * Header, die nicht mit gespeichert werden, weil sie sich auf die Uebertragung beziehen.
+   */
+  private final static String[] SKIP = new String[]{HttpHeaders.CONTENT_LENGTH,HttpHeaders.CONTENT_ENCODING,HttpHeaders.TRANSFER_ENCODING,HttpHeaders.CONNECTION};
+
+  private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>(16,0.75f,true);
+  private long size = 0L;
+
+  /**
+   * Ermittelt den Schluessel, unter dem die Antwort auf den Request gespeichert wird.
+   * Der API-Key ist enthalten, damit nach einem Wechsel des Benutzers keine fremden Daten geliefert werden.
+   * @param target der Ziel-Host.
+   * @param request der Request.
+   * @return der Schluessel oder NULL, wenn der Request nicht gecached werden kann.
+   */
+  String getKey(HttpHost target, HttpRequest request)
+  {
+    if (!"GET".equalsIgnoreCase(request.getRequestLine().getMethod()))
+      return null;
+
+    String uri = request.getRequestLine().getUri();
+    if (target != null && uri.startsWith("/"))
+      uri = target.toURI() + uri;
+
+    StringBuilder sb = new StringBuilder(uri);
+    for (Header h:request.getHeaders("X-Redmine-API-Key"))
+      sb.append('|').append(h.getValue());
+    for (Header h:request.getHeaders(HttpHeaders.AUTHORIZATION))
+      sb.append('|').append(h.getValue());
+    return sb.toString();
+  }
+
+  /**
+   * Ergaenzt den Request um die Bedingungen, falls eine Antwort gespeichert ist.
+   * @param key der Schluessel.
+   * @param request der Request.
+   * @return die gespeicherte Antwort, wenn der Request als bedingter Request gesendet wird, sonst NULL.
+   * Der Aufrufer muss sie bis zur Antwort des Servers behalten, da sie inzwischen aus dem Cache
+   * verdraengt werden kann.
+   */
+  synchronized Entry prepare(String key, HttpRequest request)
+  {
+    Entry e = this.entries.get(key);
+    if (e == null)
+      return null;
+
+    if (e.etag != null)
+      request.setHeader(HttpHeaders.IF_NONE_MATCH,e.etag);
+    if (e.lastModified != null)
+      request.setHeader(HttpHeaders.IF_MODIFIED_SINCE,e.lastModified);
+    return e;
+  }
+
+  /**
+   * Liefert die gespeicherte Antwort, wenn der Server sie als unveraendert gemeldet hat.
+   * Die Antwort des Servers wird dabei geschlossen.
+   * @param entry die beim Senden des bedingten Requests gespeicherte Antwort.
+   * @param response die Antwort des Servers.
+   * @return die gespeicherte Antwort oder NULL, wenn die Antwort des Servers zu verwenden ist.
+   * @throws IOException
+   */
+  CloseableHttpResponse revalidated(Entry entry, CloseableHttpResponse response) throws IOException
+  {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_NOT_MODIFIED)
+      return null;
+
+    ProtocolVersion version = response.getStatusLine().getProtocolVersion();
+    response.close();
+    return entry.toResponse(version);
+  }
+
+  /**
+   * Speichert die Antwort, sofern sie ein ETag oder Last-Modified enthaelt.
+   * Der Inhalt der Antwort wird dazu komplett gelesen und in der Antwort durch die gelesenen Daten ersetzt.
+   * @param key der Schluessel.
+   * @param response die Antwort des Servers.
+   * @throws IOException
+   */
+  void store(String key, HttpResponse response) throws IOException
+  {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+    {
+      this.remove(key);
+      return;
+    }
+
+    Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+    Header modified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+    HttpEntity entity = response.getEntity();
+    if ((etag == null && modified == null) || entity == null || entity.getContentLength() > MAX_ENTRY)
+    {
+      this.remove(key);
+      return;
+    }
+
+    Entry e = new Entry();
+    e.etag         = etag != null ? etag.getValue() : null;
+    e.lastModified = modified != null ? modified.getValue() : null;
+    e.reason       = response.getStatusLine().getReasonPhrase();
+    e.contentType  = ContentType.get(entity);
+    e.body         = EntityUtils.toByteArray(entity);
+
+    for (Header h:response.getAllHeaders())
+    {
+      if (!this.skip(h))
+        e.headers.add(h);
+    }
+
+    // Die Antwort liefert jetzt die bereits gelesenen Daten
+    response.setEntity(e.toEntity());
+
+    if (e.body.length > MAX_ENTRY)
+    {
+      this.remove(key);
+      return;
+    }
+
+    synchronized (this)
+    {
+      Entry prev = this.entries.put(key,e);
+      if (prev != null)
+        this.size -= prev.body.length;
+      this.size += e.body.length;
+
+      Iterator<Entry> it = this.entries.values().iterator();
+      while (this.size > MAX_SIZE && it.hasNext())
+      {
+        this.size -= it.next().body.length;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Entfernt die gespeicherte Antwort.
+   * @param key der Schluessel.
+   */
+  private synchronized void remove(String key)
+  {
+    Entry prev = this.entries.remove(key);
+    if (prev != null)
+      this.size -= prev.body.length;
+  }
+
+  /**
+   * Prueft, ob der Header nicht mit gespeichert werden soll.
+   * @param h der Header.
+   * @return true, wenn er nicht gespeichert werden soll.
+   */
+  private boolean skip(Header h)
+  {
+    for (String s:SKIP)
+    {
+      if (s.equalsIgnoreCase(h.getName()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Eine gespeicherte Antwort. Sie wird nach dem Speichern nicht mehr veraendert.
+   */
+  static class Entry
+  {
+    private String etag         = null;
+    private String lastModified = null;
+    private String reason       = null;
+    private ContentType contentType = null;
+    private byte[] body         = null;
+    private List<Header> headers = new ArrayList<Header>();
+
+    /**
+     * Liefert den gespeicherten Inhalt.
+     * @return der Inhalt.
+     */
+    private HttpEntity toEntity()
+    {
+      return new ByteArrayEntity(this.body,this.contentType);
+    }
+
+    /**
+     * Erzeugt aus der gespeicherten Antwort eine neue Antwort.
+     * @param version die HTTP-Version.
+     * @return die Antwort.
+     */
+    private CloseableHttpResponse toResponse(ProtocolVersion version)
+    {
+      CachedResponse r = new CachedResponse(version,this.reason);
+      for (Header h:this.headers)
+        r.addHeader(h);
+      r.setEntity(this.toEntity());
+      return r;
+    }
+  }
+
+  /**
+   * Antwort aus dem Cache. Sie belegt keine Verbindung, muss also auch nichts freigeben.
+   */
+  private static class CachedResponse extends BasicHttpResponse implements CloseableHttpResponse
+  {
+    /**
+     * ct.
+     * @param version die HTTP-Version.
+     * @param reason der Status-Text.
+     */
+    private CachedResponse(ProtocolVersion version, String reason)
+    {
+      super(version,HttpStatus.SC_OK,reason);
+    }
+
+    /**
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException
+    {
+    }
+  }
+}
+
+
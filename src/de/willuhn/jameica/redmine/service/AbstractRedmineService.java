@@ -7,35 +7,61 @@
 
 package de.willuhn.jameica.redmine.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
+import com.taskadapter.redmineapi.IssueManager;
 import com.taskadapter.redmineapi.NotAuthorizedException;
 import com.taskadapter.redmineapi.NotFoundException;
 import com.taskadapter.redmineapi.RedmineAuthenticationException;
 import com.taskadapter.redmineapi.RedmineException;
 import com.taskadapter.redmineapi.RedmineManager;
 import com.taskadapter.redmineapi.RedmineManagerFactory;
+import com.taskadapter.redmineapi.RedmineProcessingException;
 import com.taskadapter.redmineapi.RedmineTransportException;
+import com.taskadapter.redmineapi.TimeEntryManager;
 import com.taskadapter.redmineapi.bean.Issue;
-import com.taskadapter.redmineapi.bean.Membership;
 import com.taskadapter.redmineapi.bean.Project;
 import com.taskadapter.redmineapi.bean.TimeEntry;
 import com.taskadapter.redmineapi.bean.TimeEntryActivity;
 import com.taskadapter.redmineapi.bean.TimeEntryFactory;
 import com.taskadapter.redmineapi.bean.User;
+import com.taskadapter.redmineapi.internal.ResultsWrapper;
 
+import de.willuhn.jameica.redmine.DataRejectedException;
 import de.willuhn.jameica.redmine.Plugin;
+import de.willuhn.jameica.redmine.ServerUnavailableException;
 import de.willuhn.jameica.redmine.Settings;
+import de.willuhn.jameica.redmine.beans.CompactIssue;
 import de.willuhn.jameica.redmine.beans.ProjectTree;
+import de.willuhn.jameica.redmine.http.ManagedHttpClient;
+import de.willuhn.jameica.redmine.http.CircuitBreaker;
+import de.willuhn.jameica.redmine.http.RateLimiter;
+import de.willuhn.jameica.redmine.http.RequestStatistics;
 import de.willuhn.jameica.system.Application;
 import de.willuhn.logging.Level;
 import de.willuhn.logging.Logger;
@@ -49,12 +75,36 @@ public class AbstractRedmineService
 {
   private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
   
+  /**
+   * Anzahl der Issues, die pro Seite abgerufen werden. Mehr als 100 liefert Redmine nicht.
+   */
+  private final static int PAGE_SIZE = 100;
+  
+  /**
+   * Anzahl der zuletzt verwendeten Issues, die gemerkt werden.
+   */
+  private final static int MAX_RECENT = 10;
+  
+  /**
+   * Anzahl der Sekunden, nach denen ungenutzte Verbindungen geschlossen werden.
+   */
+  private final static long IDLE_TIMEOUT = 30L;
+  
   @Resource
   private Settings settings;
   
+  private final RequestStatistics stats = new RequestStatistics();
+  private final CircuitBreaker breaker = new CircuitBreaker();
+  private final RateLimiter limiter = new RateLimiter();
+  private final ProjectAccessResolver resolver = new ProjectAccessResolver();
+  
   private RedmineManager manager = null;
+  private CloseableHttpClient client = null;
+  private String clientConfig = null;
   private User currentUser = null;
   private TimeEntry currentEntry = null;
+  private TimeEntry finishedEntry = null;
+  private TimeEntryJournal journal = null;
   
   /**
    * Liefert den Redmine-Manager.
@@ -73,17 +123,117 @@ public class AbstractRedmineService
       
       Logger.info("opening connection to: " + url);
       Logger.debug("using API key: " + apiKey);
-      this.manager = RedmineManagerFactory.createWithApiKey(url,apiKey);
+      
+      this.configureRateLimiter();
+      this.manager = RedmineManagerFactory.createWithApiKey(url,apiKey,this.getHttpClient());
     }
     
     return this.manager;
   }
   
+  /**
+   * Liefert den HTTP-Client.
+   * Er bleibt auch ueber {@link #reconnect()} hinweg erhalten, damit die bereits offenen
+   * Verbindungen weiter verwendet werden koennen. Neu erzeugt wird er nur, wenn sich die
+   * Verbindungseinstellungen geaendert haben.
+   * @return der HTTP-Client.
+   */
+  private synchronized HttpClient getHttpClient()
+  {
+    int threads = this.settings.getCacheReloadThreads();
+    int connect = this.settings.getHttpConnectTimeout() * 1000;
+    int read    = this.settings.getHttpReadTimeout() * 1000;
+    String config = threads + "/" + connect + "/" + read;
+    
+    if (this.client != null && config.equals(this.clientConfig))
+      return this.client;
+    
+    if (this.client != null)
+    {
+      Logger.info("connection settings changed, closing http client");
+      try
+      {
+        this.client.close();
+      }
+      catch (IOException e)
+      {
+        Logger.error("unable to close http client",e);
+      }
+    }
+    
+    Logger.info("creating http client, " + threads + " parallel connections, timeouts: " + connect + "/" + read + " millis");
+    
+    // Der Connection-Manager muss mehrere parallele Requests erlauben, da der Cache
+    // die Issues mehrerer Projekte gleichzeitig abruft. Eine Verbindung mehr, damit
+    // die Zeiterfassung waehrend eines Reload nicht auf eine freie Verbindung warten muss.
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http",PlainConnectionSocketFactory.getSocketFactory())
+        .register("https",SSLConnectionSocketFactory.getSystemSocketFactory())
+        .build();
+    PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(registry);
+    cm.setMaxTotal(threads + 1);
+    cm.setDefaultMaxPerRoute(threads + 1);
+    
+    RequestConfig rc = RequestConfig.custom()
+        .setConnectTimeout(connect)
+        .setConnectionRequestTimeout(connect)
+        .setSocketTimeout(read)
+        .build();
+    
+    // Komprimierung (gzip/deflate) und Keep-Alive sind beim HttpClientBuilder bereits
+    // aktiv. Verbindungen, die laenger ungenutzt sind, schliessen wir, bevor der Server
+    // es tut. Proxy-Einstellungen kommen aus den System-Properties.
+    CloseableHttpClient client = HttpClientBuilder.create()
+        .useSystemProperties()
+        .setConnectionManager(cm)
+        .setDefaultRequestConfig(rc)
+        .evictIdleConnections(IDLE_TIMEOUT,TimeUnit.SECONDS)
+        .build();
+    
+    this.client = new ManagedHttpClient(client,this.stats,this.breaker,this.limiter,rc);
+    this.clientConfig = config;
+    return this.client;
+  }
+  
+  /**
+   * Liefert die Statistik der an den Server gesendeten HTTP-Requests.
+   * @return die Statistik.
+   */
+  public RequestStatistics getRequestStatistics()
+  {
+    return this.stats;
+  }
+  
+  /**
+   * Liefert den Limiter fuer die Anzahl der Requests pro Sekunde.
+   * Ueber ihn koennen Durchsatz und Wartezeiten abgefragt werden.
+   * @return der Limiter.
+   */
+  public RateLimiter getRateLimiter()
+  {
+    return this.limiter;
+  }
+  
+  /**
+   * Prueft, ob der Server zuletzt nicht erreichbar war.
+   * In dem Fall wird mit den gecachten Daten gearbeitet und die Zeiterfassungen
+   * werden erst uebertragen, wenn der Server wieder erreichbar ist.
+   * Die Pruefung erfolgt ohne Server-Abfrage und blockiert daher nicht.
+   * @return true, wenn der Server zuletzt nicht erreichbar war.
+   */
+  public boolean isOffline()
+  {
+    return !this.stats.isServerReachable() || this.breaker.isOpen();
+  }
+  
   /**
    * Verwirft den aktuellen Redmine-Manager und forciert damit einen neuen Verbindungsaufbau.
    */
   public void reconnect()
   {
+    // Die Raten gelten sofort, auch fuer bereits wartende Requests
+    this.configureRateLimiter();
+
     if (this.manager != null)
     {
       Logger.info("discarding current redmine manager, results in server reconnect");
@@ -91,6 +241,15 @@ public class AbstractRedmineService
     }
   }
   
+  /**
+   * Uebernimmt die Raten aus den Einstellungen in den Limiter.
+   * Dafuer muss der HTTP-Client nicht neu erzeugt werden.
+   */
+  private void configureRateLimiter()
+  {
+    this.limiter.configure(this.settings.getHttpRateLimit(),this.settings.getHttpRateLimitBackground());
+  }
+  
   /**
    * Liefert den aktuell angemeldeten Benutzer.
    * @return der aktuell angemeldete Benutzer.
@@ -114,6 +273,24 @@ public class AbstractRedmineService
     return this.currentUser;
   }
   
+  /**
+   * Verwirft den gemerkten Benutzer, damit er beim naechsten Zugriff neu abgerufen wird.
+   */
+  protected void resetCurrentUser()
+  {
+    this.currentUser = null;
+  }
+  
+  /**
+   * Liefert die ID des aktuell angemeldeten Benutzers, sofern sie ohne Server-Abfrage bekannt ist.
+   * @return die ID des Benutzers oder NULL, wenn sie noch nicht bekannt ist.
+   */
+  protected Integer getCurrentUserId()
+  {
+    User user = this.currentUser;
+    return user != null ? user.getId() : null;
+  }
+  
   /**
    * Liefert eine baumfoermige Liste der Projekte, auf die der User Zugriff hat.
    * @return die Liste der Projekte, auf die der User Zugriff hat.
@@ -191,6 +368,95 @@ public class AbstractRedmineService
     }
   }
   
+  /**
+   * Laedt das vollstaendige Issue vom Server.
+   * @param id die ID des Issues.
+   * @return das Issue.
+   * @throws ApplicationException
+   */
+  public Issue getIssue(Integer id) throws ApplicationException
+  {
+    try
+    {
+      Logger.info("fetching issue #" + id);
+      return this.getManager().getIssueManager().getIssueById(id);
+    }
+    catch (RedmineException re)
+    {
+      handleRedmineException(re,i18n.tr("Abruf der Aufgabe #{0} fehlgeschlagen: {1}",String.valueOf(id),re.getMessage()));
+      return null; // cannot happen
+    }
+  }
+  
+  /**
+   * Liefert die offenen Issues aller fuer den User sichtbaren Projekte mit einer gemeinsamen Abfrage.
+   * @return die Issues.
+   * @throws ApplicationException
+   */
+  public List<Issue> getAllIssues() throws ApplicationException
+  {
+    Logger.info("fetching issues of all projects");
+    return this.queryIssues(new HashMap<String,String>());
+  }
+  
+  /**
+   * Liefert die Issues aller fuer den User sichtbaren Projekte, die seit dem angegebenen Zeitpunkt geaendert wurden.
+   * @param since Zeitpunkt, ab dem die Aenderungen geliefert werden sollen.
+   * @param closed true, wenn die geschlossenen Issues geliefert werden sollen, sonst die offenen.
+   * @return die Issues.
+   * @throws ApplicationException
+   */
+  public List<Issue> getChangedIssues(Date since, boolean closed) throws ApplicationException
+  {
+    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    df.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String date = df.format(since);
+    
+    Logger.info("fetching " + (closed ? "closed" : "open") + " issues changed since " + date);
+    Map<String,String> filter = new HashMap<String,String>();
+    filter.put("status_id",closed ? "closed" : "open");
+    filter.put("updated_on",">=" + date);
+    return this.queryIssues(filter);
+  }
+  
+  /**
+   * Fuehrt eine projektuebergreifende Abfrage der Issues durch. Die Abfrage erfolgt seitenweise.
+   * @param filter die Filter-Parameter der Abfrage.
+   * @return die Issues.
+   * @throws ApplicationException
+   */
+  private List<Issue> queryIssues(Map<String,String> filter) throws ApplicationException
+  {
+    try
+    {
+      IssueManager im = this.getManager().getIssueManager();
+      List<Issue> result = new ArrayList<Issue>();
+      
+      int offset = 0;
+      while (true)
+      {
+        Map<String,String> params = new HashMap<String,String>(filter);
+        params.put("offset",Integer.toString(offset));
+        params.put("limit",Integer.toString(PAGE_SIZE));
+        ResultsWrapper<Issue> page = im.getIssues(params);
+        List<Issue> issues = page.getResults();
+        result.addAll(issues);
+        offset += issues.size();
+        
+        Integer total = page.getTotalFoundOnServer();
+        if (issues.size() == 0 || total == null || offset >= total.intValue())
+          break;
+      }
+      Logger.info("fetched " + result.size() + " issues");
+      return result;
+    }
+    catch (RedmineException re)
+    {
+      handleRedmineException(re,i18n.tr("Ticket-Abruf fehlgeschlagen: {0}",re.getMessage()));
+      return null; // cannot happen
+    }
+  }
+  
   /**
    * Liefert die verfuegbaren Aktivitaeten fuer die Zeiterfassung.
    * @return die verfuegbaren Aktivitaeten fuer die Zeiterfassung.
@@ -217,6 +483,7 @@ public class AbstractRedmineService
    */
   public TimeEntry getCurrentTimeEntry()
   {
+    this.getJournal(); // Stellt beim ersten Aufruf die Zeiterfassung aus dem Journal wieder her
     return this.currentEntry;
   }
 
@@ -228,6 +495,19 @@ public class AbstractRedmineService
    */
   public TimeEntry createTimeEntry(Issue issue) throws ApplicationException
   {
+    return this.createTimeEntry(CompactIssue.create(issue));
+  }
+  
+  /**
+   * Startet eine neue Zeiterfassung auf dem Issue.
+   * Hierfuer genuegt die kompakte Form des Issues aus dem Cache.
+   * @param issue das Issue.
+   * @return der erstellte Zeiterfassungsjob.
+   * @throws ApplicationException
+   */
+  public TimeEntry createTimeEntry(CompactIssue issue) throws ApplicationException
+  {
+    TimeEntryJournal journal = this.getJournal();
     if (this.currentEntry != null)
       throw new ApplicationException(i18n.tr("Derzeit luft bereits eine Zeiterfassung fr die Aufgabe \"{0}\"",this.currentEntry.getComment()));
     
@@ -241,38 +521,182 @@ public class AbstractRedmineService
     this.currentEntry.setComment("#" + issue.getId() + " " + issue.getSubject());
     this.currentEntry.setCreatedOn(now);
     this.currentEntry.setSpentOn(now);
-    this.currentEntry.setUserId(this.getCurrentUser().getId());
+    
+    // Ohne User-ID bucht Redmine die Zeit auf den User des API-Keys. Wir fragen
+    // ihn hier daher nicht extra ab, das wuerde ohne Verbindung zum Server blockieren.
+    this.currentEntry.setUserId(this.getCurrentUserId());
+    this.addRecentIssue(issue.getId());
+    
+    try
+    {
+      journal.start(this.currentEntry);
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to write time entry journal",e);
+    }
     return this.currentEntry;
   }
   
   /**
-   * Schliesst die Zeiterfassung fuer die laufende Aufgabe ab.
+   * Vermerkt die Aenderungen an der laufenden Zeiterfassung im Journal.
+   */
+  public synchronized void updateCurrentTimeEntry()
+  {
+    if (this.getCurrentTimeEntry() == null)
+      return;
+    
+    try
+    {
+      this.getJournal().edit(this.currentEntry);
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to write time entry journal",e);
+    }
+  }
+  
+  /**
+   * Liefert die IDs der zuletzt fuer die Zeiterfassung verwendeten Issues, das zuletzt verwendete zuerst.
+   * @return die IDs der zuletzt verwendeten Issues.
+   */
+  public List<Integer> getRecentIssues()
+  {
+    return this.settings.getRecentIssues();
+  }
+  
+  /**
+   * Liefert die IDs der vom User angehefteten Issues.
+   * @return die IDs der angehefteten Issues.
+   */
+  public List<Integer> getPinnedIssues()
+  {
+    return this.settings.getPinnedIssues();
+  }
+  
+  /**
+   * Heftet das Issue an oder loest es wieder.
+   * @param id die ID des Issues.
+   * @param pinned true, wenn das Issue angeheftet werden soll.
+   */
+  public synchronized void setPinned(Integer id, boolean pinned)
+  {
+    List<Integer> ids = this.settings.getPinnedIssues();
+    ids.remove(id);
+    if (pinned)
+      ids.add(id);
+    this.settings.setPinnedIssues(ids);
+  }
+  
+  /**
+   * Uebernimmt das Issue an erster Stelle in die Liste der zuletzt verwendeten Issues.
+   * @param id die ID des Issues.
+   */
+  private synchronized void addRecentIssue(Integer id)
+  {
+    List<Integer> ids = this.settings.getRecentIssues();
+    ids.remove(id);
+    ids.add(0,id);
+    while (ids.size() > MAX_RECENT)
+      ids.remove(ids.size() - 1);
+    this.settings.setRecentIssues(ids);
+  }
+  
+  /**
+   * Schliesst die Zeiterfassung fuer die laufende Aufgabe ab und errechnet die Dauer.
    * Das Attribut "activity" vom Aufrufer vorher gesetzt worden sein.
+   * Die Zeiterfassung wird hierbei noch nicht an den Server uebertragen, das erfolgt
+   * anschliessend via {@link #submitTimeEntry(TimeEntry)}. Es kann daher sofort eine
+   * neue Zeiterfassung gestartet werden.
+   * Im Journal gilt sie erst als erledigt, wenn der Aufrufer sie gespeichert und das per
+   * {@link #confirmTimeEntry()} bestaetigt hat. Bis dahin wird sie nach einem Absturz
+   * wiederhergestellt, siehe {@link #getFinishedTimeEntry()}.
+   * @return die abgeschlossene Zeiterfassung.
    * @throws ApplicationException
    */
-  public synchronized void commitCurrentTimeEntry() throws ApplicationException
+  public synchronized TimeEntry finishCurrentTimeEntry() throws ApplicationException
   {
-    if (this.currentEntry == null)
+    if (this.getCurrentTimeEntry() == null)
       throw new ApplicationException(i18n.tr("Derzeit luft keine eine Zeiterfassung"));
     
     if (this.currentEntry.getActivityId() == null)
       throw new ApplicationException(i18n.tr("Keine Aktivitt ausgewhlt"));
     
+    // "hours" errechnen
+    long now      = System.currentTimeMillis();
+    long started  = this.currentEntry.getCreatedOn().getTime();
+    float minutes = (now - started) / 1000 / 60;
+    float hours   = minutes / 60;
+    this.currentEntry.setHours(hours);
+
+    Logger.info("finished current time entry for issue #" + this.currentEntry.getIssueId() + ", used time: " + minutes + " minutes (" + hours + " hours)");
+    
+    TimeEntry entry = this.currentEntry;
+    this.currentEntry = null;
+    this.finishedEntry = entry;
+    
     try
     {
-      // 1. "hours" errechnen
-      long now      = System.currentTimeMillis();
-      long started  = this.currentEntry.getCreatedOn().getTime();
-      float minutes = (now - started) / 1000 / 60;
-      float hours   = minutes / 60;
-      this.currentEntry.setHours(hours);
-
-      Logger.info("committing current time entry for issue #" + this.currentEntry.getIssueId() + ", used time: " + minutes + " minutes (" + hours + " hours)");
-
-      // 2. Speichern
-      this.getManager().getTimeEntryManager().createTimeEntry(this.currentEntry);
-      Logger.info("time entry for issue #" + this.currentEntry.getIssueId() + " committed");
-      this.currentEntry = null; // Nicht im finally damit das nur passiert, wenn das commit geklappt hat
+      this.getJournal().finish(entry);
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to write time entry journal",e);
+    }
+    return entry;
+  }
+  
+  /**
+   * Liefert die abgeschlossene Zeiterfassung, deren Speicherung noch nicht per
+   * {@link #confirmTimeEntry()} bestaetigt wurde. Das ist der Fall, wenn die Anwendung
+   * zwischen Abschluss und Speicherung abgestuerzt ist.
+   * @return die abgeschlossene Zeiterfassung oder NULL.
+   */
+  public synchronized TimeEntry getFinishedTimeEntry()
+  {
+    this.getJournal(); // Stellt beim ersten Aufruf die Zeiterfassung aus dem Journal wieder her
+    return this.finishedEntry;
+  }
+  
+  /**
+   * Bestaetigt, dass die abgeschlossene Zeiterfassung gespeichert ist.
+   * Erst jetzt wird sie im Journal als erledigt vermerkt.
+   */
+  public synchronized void confirmTimeEntry()
+  {
+    this.getJournal();
+    if (this.finishedEntry == null)
+      return;
+    
+    this.finishedEntry = null;
+    
+    // Laeuft bereits die naechste Zeiterfassung, hat das Journal schon von vorn begonnen
+    if (this.currentEntry != null)
+      return;
+    
+    try
+    {
+      this.getJournal().commit();
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to write time entry journal",e);
+    }
+  }
+  
+  /**
+   * Uebertraegt die abgeschlossene Zeiterfassung an den Server.
+   * @param entry die abgeschlossene Zeiterfassung.
+   * @throws ApplicationException
+   * @throws ServerUnavailableException wenn der Server nicht erreichbar ist. Die Uebertragung kann dann spaeter wiederholt werden.
+   */
+  public void submitTimeEntry(TimeEntry entry) throws ApplicationException
+  {
+    try
+    {
+      Logger.info("committing time entry for issue #" + entry.getIssueId());
+      this.getManager().getTimeEntryManager().createTimeEntry(entry);
+      Logger.info("time entry for issue #" + entry.getIssueId() + " committed");
     }
     catch (RedmineException re)
     {
@@ -280,12 +704,97 @@ public class AbstractRedmineService
     }
   }
   
+  /**
+   * Liefert die Zeiterfassungen des aktuellen Users ab dem angegebenen Tag.
+   * @param from der erste Tag.
+   * @return die Zeiterfassungen.
+   * @throws ApplicationException
+   */
+  public List<TimeEntry> getTimeEntries(Date from) throws ApplicationException
+  {
+    String date = new SimpleDateFormat("yyyy-MM-dd").format(from);
+    try
+    {
+      Logger.info("fetching own time entries since " + date);
+      TimeEntryManager tm = this.getManager().getTimeEntryManager();
+      List<TimeEntry> result = new ArrayList<TimeEntry>();
+      
+      int offset = 0;
+      while (true)
+      {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put("user_id","me");
+        params.put("from",date);
+        params.put("offset",Integer.toString(offset));
+        params.put("limit",Integer.toString(PAGE_SIZE));
+        ResultsWrapper<TimeEntry> page = tm.getTimeEntries(params);
+        List<TimeEntry> entries = page.getResults();
+        result.addAll(entries);
+        offset += entries.size();
+        
+        Integer total = page.getTotalFoundOnServer();
+        if (entries.size() == 0 || total == null || offset >= total.intValue())
+          break;
+      }
+      return result;
+    }
+    catch (RedmineException re)
+    {
+      handleRedmineException(re,i18n.tr("Abruf der erfassten Arbeitszeiten fehlgeschlagen: {0}",re.getMessage()));
+      return null; // cannot happen
+    }
+  }
+  
   /**
    * Verwirft die aktuell laufende Zeiterfassung.
    */
-  public void dismissCurrentTimeEntry()
+  public synchronized void dismissCurrentTimeEntry()
   {
+    if (this.getCurrentTimeEntry() == null)
+      return;
+    
     this.currentEntry = null;
+    try
+    {
+      this.getJournal().dismiss();
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to write time entry journal",e);
+    }
+  }
+  
+  /**
+   * Liefert das Journal der laufenden Zeiterfassung.
+   * Beim ersten Aufruf wird die beim letzten Mal laufende Zeiterfassung daraus wiederhergestellt.
+   * @return das Journal.
+   */
+  private synchronized TimeEntryJournal getJournal()
+  {
+    if (this.journal == null)
+    {
+      String dir = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+      this.journal = new TimeEntryJournal(new File(dir,"timeentry.journal"));
+      try
+      {
+        TimeEntry entry = this.journal.replay();
+        if (entry != null && entry.getHours() != null)
+        {
+          Logger.info("restored finished but not yet queued time entry for issue #" + entry.getIssueId() + " from journal");
+          this.finishedEntry = entry;
+        }
+        else if (entry != null)
+        {
+          Logger.info("restored running time entry for issue #" + entry.getIssueId() + " from journal");
+          this.currentEntry = entry;
+        }
+      }
+      catch (IOException e)
+      {
+        Logger.error("unable to read time entry journal",e);
+      }
+    }
+    return this.journal;
   }
   
   /**
@@ -302,22 +811,7 @@ public class AbstractRedmineService
       
       Logger.info("fetching project list");
       List<Project> projects = manager.getProjectManager().getProjects();
-      List<Project> filtered = new ArrayList<Project>();
-      for (Project p:projects)
-      {
-        List<Membership> members = manager.getMembershipManager().getMemberships(p.getId());
-        for (Membership m:members)
-        {
-          Integer u = m.getUserId();
-          if (u == null || u.equals(user.getId()))
-          {
-            filtered.add(p);
-            break;
-          }
-        }
-      }
-      
-      return filtered;
+      return this.resolver.resolve(manager,user,projects);
     }
     catch (RedmineException re)
     {
@@ -346,7 +840,7 @@ public class AbstractRedmineService
     }
     catch (RedmineTransportException e2)
     {
-      throw new ApplicationException(i18n.tr("Hostname des Redmine-Servers scheint falsch zu sein oder Server nicht erreichbar."));
+      throw new ServerUnavailableException(i18n.tr("Hostname des Redmine-Servers scheint falsch zu sein oder Server nicht erreichbar."),e2);
     }
     catch (IllegalArgumentException e3)
     {
@@ -356,6 +850,11 @@ public class AbstractRedmineService
     {
       throw new ApplicationException(i18n.tr("API-Zugangsschlssel fehlt oder ungltig."));
     }
+    catch (RedmineProcessingException e5)
+    {
+      // Der Server hat die Daten geprueft und abgelehnt (422)
+      throw new DataRejectedException(message,e5);
+    }
     catch (RedmineException re)
     {
       // Hierfuer haben wir keine gesonderte Behandlung. Daher die Default-Fehlermeldung und Logging oben.
@@ -0,0 +1,186 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.taskadapter.redmineapi.bean.Project;
+import com.taskadapter.redmineapi.bean.TimeEntryActivity;
+
+import de.willuhn.jameica.redmine.beans.CompactIssue;
+import de.willuhn.jameica.redmine.beans.ProjectTree;
+
+/**
+ * Unveraenderlicher Stand des Caches.
+ * Der Cache tauscht bei jedem Reload den kompletten Stand aus. Wer sich einen Stand
+ * geholt hat, sieht daher immer in sich konsistente Daten - auch wenn parallel ein
+ * Reload stattfindet.
+ */
+public final class CacheSnapshot
+{
+  /**
+   * Leerer Stand, solange noch keine Daten geladen wurden.
+   */
+  final static CacheSnapshot EMPTY = new CacheSnapshot(0L,new ArrayList<ProjectTree>(),new ArrayList<TimeEntryActivity>(),new HashMap<Integer,List<CompactIssue>>(),null,false,false);
+
+  private final long generation;
+  private final Integer user;
+  private final List<ProjectTree> projects;
+  private final List<TimeEntryActivity> activities;
+  private final Map<Integer,List<CompactIssue>> issues;
+  private final Map<Integer,List<CompactIssue>> views;
+  private final IssueIndex index;
+
+  /**
+   * ct.
+   * @param generation fortlaufende Nummer des Standes.
+   * @param projects die Projekte.
+   * @param activities die Aktivitaeten.
+   * @param issues die Issues pro Projekt.
+   * @param user die ID des aktuellen Users. Kann NULL sein, wenn er nicht bekannt ist.
+   * @param own true, wenn nur die Issues angezeigt werden sollen, die dem User zugewiesen sind.
+   * @param unassigned true, wenn Issues angezeigt werden sollen, die niemandem zugewiesen sind.
+   */
+  CacheSnapshot(long generation, List<ProjectTree> projects, List<TimeEntryActivity> activities, Map<Integer,List<CompactIssue>> issues, Integer user, boolean own, boolean unassigned)
+  {
+    this.generation = generation;
+    this.user       = user;
+    this.projects   = Collections.unmodifiableList(projects);
+    this.activities = Collections.unmodifiableList(activities);
+    this.issues     = Collections.unmodifiableMap(issues);
+
+    // Die gefilterten Ansichten pro Projekt erzeugen, damit die Filter nicht bei jedem
+    // Zugriff neu angewendet werden muessen.
+    Map<Integer,List<CompactIssue>> views = new HashMap<Integer,List<CompactIssue>>();
+    for (Entry<Integer,List<CompactIssue>> e:issues.entrySet())
+    {
+      Integer project = e.getKey();
+      List<CompactIssue> result = new ArrayList<CompactIssue>();
+      for (CompactIssue i:e.getValue())
+      {
+        // Nur die direkt dem Projekt zugeordneten Aufgaben. Nicht die von Unter-Projekten.
+        // Die kommen ja in einem extra Ordner.
+        if (!project.equals(i.getProjectId()))
+          continue;
+
+        // Keinem zugeordnet - sollen die geliefert werden?
+        Integer assignee = i.getAssigneeId();
+        if (assignee == null)
+        {
+          if (unassigned) // Nur hinzufuegen, wenn gewuenscht
+            result.add(i);
+          continue;
+        }
+
+        // Keine Einschraenkung beim User oder User passt
+        if (!own || assignee.equals(user))
+          result.add(i);
+      }
+      views.put(project,Collections.unmodifiableList(result));
+    }
+    this.views = views;
+    this.index = new IssueIndex(this.projects,views);
+  }
+
+  /**
+   * Liefert die fortlaufende Nummer des Standes.
+   * Sie wird bei jeder Aenderung des Caches erhoeht.
+   * @return die fortlaufende Nummer des Standes.
+   */
+  public long getGeneration()
+  {
+    return this.generation;
+  }
+
+  /**
+   * Liefert die ID des Users, fuer den die Daten geladen wurden.
+   * @return die ID des Users. Kann NULL sein, wenn noch keine Daten geladen wurden.
+   */
+  public Integer getUser()
+  {
+    return this.user;
+  }
+
+  /**
+   * Liefert die baumfoermige Liste der Projekte.
+   * @return die Liste der Projekte.
+   */
+  public List<ProjectTree> getProjects()
+  {
+    return this.projects;
+  }
+
+  /**
+   * Liefert die verfuegbaren Aktivitaeten fuer die Zeiterfassung.
+   * @return die verfuegbaren Aktivitaeten.
+   */
+  public List<TimeEntryActivity> getActivities()
+  {
+    return this.activities;
+  }
+
+  /**
+   * Liefert die gemaess den Einstellungen gefilterten Issues des Projektes.
+   * Issues von Unter-Projekten sind nicht enthalten.
+   * @param project das Projekt.
+   * @return die Issues. Niemals NULL.
+   */
+  public List<CompactIssue> getIssues(Project project)
+  {
+    List<CompactIssue> list = this.views.get(project.getId());
+    return list != null ? list : Collections.<CompactIssue>emptyList();
+  }
+
+  /**
+   * Liefert die gemaess den Einstellungen gefilterten Issues aller Projekte
+   * in der Reihenfolge des Projekt-Baumes.
+   * @return die Issues. Niemals NULL.
+   */
+  public List<CompactIssue> getIssues()
+  {
+    return this.index.getIssues();
+  }
+
+  /**
+   * Liefert das Issue mit der angegebenen ID aus den gemaess den Einstellungen gefilterten Issues.
+   * @param id die ID des Issues.
+   * @return das Issue oder NULL, wenn es nicht enthalten ist.
+   */
+  public CompactIssue getIssue(Integer id)
+  {
+    return this.index.get(id);
+  }
+
+  /**
+   * Sucht in den gemaess den Einstellungen gefilterten Issues.
+   * @param query der Suchbegriff. Entweder "#" gefolgt von der ID oder beliebige Wort-Anfaenge,
+   * die alle im Titel oder im Projekt-Namen vorkommen muessen.
+   * @param limit maximale Anzahl der Treffer.
+   * @return die Treffer, die besten zuerst. Niemals NULL.
+   */
+  public List<CompactIssue> search(String query, int limit)
+  {
+    return this.index.search(query,limit);
+  }
+
+  /**
+   * Liefert die ungefilterten Issues pro Projekt.
+   * @return die ungefilterten Issues pro Projekt.
+   */
+  Map<Integer,List<CompactIssue>> getAllIssues()
+  {
+    return this.issues;
+  }
+}
+
+
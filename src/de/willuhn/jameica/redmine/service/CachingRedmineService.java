@@ -7,26 +7,50 @@
 
 package de.willuhn.jameica.redmine.service;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Resource;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
 import com.taskadapter.redmineapi.bean.Issue;
 import com.taskadapter.redmineapi.bean.Project;
 import com.taskadapter.redmineapi.bean.TimeEntryActivity;
-import com.taskadapter.redmineapi.bean.User;
 
 import de.willuhn.annotation.Lifecycle;
 import de.willuhn.annotation.Lifecycle.Type;
 import de.willuhn.jameica.messaging.StatusBarMessage;
+import de.willuhn.jameica.redmine.Plugin;
+import de.willuhn.jameica.redmine.ServerUnavailableException;
 import de.willuhn.jameica.redmine.Settings;
+import de.willuhn.jameica.redmine.beans.CompactIssue;
 import de.willuhn.jameica.redmine.beans.ProjectTree;
+import de.willuhn.jameica.redmine.http.CancellationToken;
+import de.willuhn.jameica.redmine.http.RateLimiter.Priority;
 import de.willuhn.jameica.system.Application;
+import de.willuhn.jameica.system.OperationCanceledException;
 import de.willuhn.logging.Logger;
 import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
 
 /**
  * Redmine-Service, der die Ergebnisse fuer schnelleren Zugriff cached.
@@ -34,14 +58,66 @@ import de.willuhn.util.ApplicationException;
 @Lifecycle(Type.CONTEXT)
 public class CachingRedmineService extends AbstractRedmineService
 {
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+  
+  /**
+   * Maximale Dauer eines Reload. Danach wird er abgebrochen.
+   */
+  private final static long RELOAD_TIMEOUT = 10 * 60 * 1000L;
+  
   @Resource
   private Settings settings;
 
-  private Object lock = new Object();
-  // Mit leeren Listen/Maps initialisieren
-  private List<ProjectTree> projects = new ArrayList<ProjectTree>();
-  private List<TimeEntryActivity> activities = new ArrayList<TimeEntryActivity>();
-  private Map<Integer,List<Issue>> issues = new HashMap<Integer,List<Issue>>();
+  // Der aktuelle Stand des Caches. Wird bei jeder Aenderung komplett ausgetauscht,
+  // daher koennen Leser ohne Sperre darauf zugreifen.
+  private final AtomicReference<CacheSnapshot> snapshot = new AtomicReference<CacheSnapshot>(CacheSnapshot.EMPTY);
+  private final AtomicLong generation = new AtomicLong();
+  
+  // Juengster Aenderungszeitpunkt der gecachten Issues und Zeitpunkt des letzten kompletten Reload
+  private volatile Date watermark = null;
+  private volatile long lastFullReload = 0L;
+  
+  // Zeitpunkte, zu denen die selten geaenderten Bereiche des Caches zuletzt geladen wurden
+  private volatile long userLoaded = 0L;
+  private volatile long projectsLoaded = 0L;
+  private volatile long activitiesLoaded = 0L;
+  private volatile boolean invalid = false;
+  private volatile CancellationToken token = null;
+  
+  // Es laeuft immer nur ein Reload gleichzeitig. Anforderungen waehrend eines
+  // laufenden Reload werden zu einem einzigen Folge-Lauf zusammengefasst.
+  private final SingleFlight<Integer> flight = new SingleFlight<Integer>(new Callable<Integer>() {
+    public Integer call() throws Exception
+    {
+      return load();
+    }
+  });
+  
+  private SnapshotStore store = null;
+  
+  /**
+   * Liefert den aktuellen Stand des Caches.
+   * Wer mehrere Daten aus dem Cache benoetigt, sollte sie alle aus demselben Stand lesen,
+   * damit sie zueinander passen, auch wenn zwischendurch ein Reload stattfindet.
+   * @return der aktuelle Stand des Caches.
+   */
+  public CacheSnapshot getSnapshot()
+  {
+    return this.snapshot.get();
+  }
+  
+  /**
+   * Sucht in den gecachten Issues.
+   * @param query der Suchbegriff. Entweder "#" gefolgt von der ID oder beliebige Wort-Anfaenge,
+   * die alle im Titel oder im Projekt-Namen vorkommen muessen.
+   * @param limit maximale Anzahl der Treffer.
+   * @return die Treffer, die besten zuerst.
+   * @see CacheSnapshot#search(String, int)
+   */
+  public List<CompactIssue> search(String query, int limit)
+  {
+    return this.getSnapshot().search(query,limit);
+  }
   
   /**
    * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#getProjects()
@@ -50,131 +126,684 @@ public class CachingRedmineService extends AbstractRedmineService
   public List<ProjectTree> getProjects() throws ApplicationException
   {
     // Wir liefern hier generell nur gecachten Daten zurueck
-    synchronized (lock)
+    return this.getSnapshot().getProjects();
+  }
+  
+  /**
+   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#getActivities()
+   */
+  @Override
+  public List<TimeEntryActivity> getActivities() throws ApplicationException
+  {
+    // Wir liefern hier generell nur gecachten Daten zurueck
+    return this.getSnapshot().getActivities();
+  }
+  
+  /**
+   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#reconnect()
+   */
+  @Override
+  public void reconnect()
+  {
+    this.reload();
+  }
+  
+  /**
+   * Verbindet sich neu mit dem Server und laedt den Cache neu.
+   * Fehler werden in der Statusleiste angezeigt, der bisherige Stand des Caches bleibt dann erhalten.
+   * Laeuft bereits ein Reload, wird danach genau ein weiterer ausgefuehrt, auf den alle
+   * zwischenzeitlichen Aufrufer gemeinsam warten.
+   * @return die Anzahl der geaenderten Issues oder -1, wenn das Neuladen fehlgeschlagen ist.
+   */
+  public int reload()
+  {
+    try
+    {
+      return this.flight.run().intValue();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return -1;
+    }
+    catch (ExecutionException ee)
+    {
+      Logger.error("error while reloading cache",ee.getCause());
+      return -1;
+    }
+  }
+  
+  /**
+   * Liefert den gerade laufenden Reload, damit der Aufrufer auf dessen Ende warten kann.
+   * @return der laufende Reload oder NULL, wenn gerade keiner laeuft. Das Ergebnis ist
+   * die Anzahl der geaenderten Issues oder -1, wenn das Neuladen fehlgeschlagen ist.
+   */
+  public Future<Integer> getRunningReload()
+  {
+    return this.flight.getCurrent();
+  }
+  
+  /**
+   * Bricht den gerade laufenden Reload ab. Laufende Requests werden sofort abgebrochen,
+   * der bisherige Stand des Caches bleibt erhalten.
+   */
+  public void cancelReload()
+  {
+    CancellationToken token = this.token;
+    if (token != null)
+    {
+      Logger.info("cancelling running reload");
+      token.cancel();
+    }
+  }
+  
+  /**
+   * Prueft, ob der laufende Reload abgebrochen wurde oder zu lange dauert.
+   * @throws OperationCanceledException wenn der Reload abgebrochen werden soll.
+   */
+  private void checkCancelled() throws OperationCanceledException
+  {
+    CancellationToken token = CancellationToken.current();
+    if (token != null && token.isCancelled())
+      throw new OperationCanceledException("reload cancelled");
+  }
+  
+  /**
+   * Fuehrt den eigentlichen Reload durch.
+   * @return die Anzahl der geaenderten Issues oder -1, wenn das Neuladen fehlgeschlagen ist.
+   */
+  private int load()
+  {
+    // Wir laden die Daten erstmal komplett neu, ohne die GUI zu blockieren und
+    // uebernehmen die Daten dann en bloc
+    super.reconnect();
+
+    long started  = System.currentTimeMillis();
+    long requests = this.getRequestStatistics().getRequestCount();
+    long hits     = this.getRequestStatistics().getCacheHitCount();
+    long waited   = this.getRateLimiter().getWaitTime(Priority.BACKGROUND);
+    
+    CancellationToken token = new CancellationToken(RELOAD_TIMEOUT);
+    this.token = token;
+    token.bind();
+    try
+    {
+      int changes = this.refresh(started);
+      Logger.info("refreshing finished, loaded " + this.getSnapshot().getAllIssues().size() + " projects, " + changes + " changed issues, took " + ((System.currentTimeMillis() - started) / 1000) + " seconds, " + (this.getRequestStatistics().getRequestCount() - requests) + " HTTP requests, " + (this.getRequestStatistics().getCacheHitCount() - hits) + " not modified, " + (this.getRateLimiter().getWaitTime(Priority.BACKGROUND) - waited) + " millis rate limited");
+      return changes;
+    }
+    catch (OperationCanceledException oce)
     {
-      return this.projects;
+      Logger.warn("refreshing cancelled after " + ((System.currentTimeMillis() - started) / 1000) + " seconds, keeping cached data");
     }
+    catch (ApplicationException ae)
+    {
+      // Die Fehlermeldung durch einen abgebrochenen Request zeigen wir nicht an
+      if (token.isCancelled())
+        Logger.warn("refreshing cancelled after " + ((System.currentTimeMillis() - started) / 1000) + " seconds, keeping cached data");
+      else if (ae instanceof ServerUnavailableException)
+      {
+        // Offline. Wir arbeiten mit dem bisherigen Stand des Caches weiter
+        Logger.warn("server not available, keeping cached data");
+        Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Redmine nicht erreichbar. Offline-Modus, es werden die zwischengespeicherten Daten verwendet"),StatusBarMessage.TYPE_INFO));
+      }
+      else
+        Application.getMessagingFactory().sendMessage(new StatusBarMessage(ae.getMessage(),StatusBarMessage.TYPE_ERROR));
+    }
+    finally
+    {
+      token.unbind();
+      this.token = null;
+    }
+    return -1;
   }
   
   /**
-   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#getIssues(com.taskadapter.redmineapi.bean.Project)
+   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#getCurrentUserId()
    */
   @Override
-  public List<Issue> getIssues(Project project) throws ApplicationException
+  protected Integer getCurrentUserId()
   {
-    // Wir liefern hier generell nur gecachten Daten zurueck
-    synchronized (lock)
+    Integer id = super.getCurrentUserId();
+    return id != null ? id : this.getSnapshot().getUser();
+  }
+  
+  /**
+   * Laedt den beim letzten Reload gespeicherten Cache, damit die Daten sofort nach dem Start
+   * zur Verfuegung stehen, auch wenn das erste Reload noch laeuft. Ein Cache, der zu einem anderen
+   * Server oder User gehoert oder in einem veralteten Format vorliegt, wird verworfen.
+   */
+  public void restore()
+  {
+    SnapshotStore store = this.getStore();
+    try
     {
-      List<Issue> issues = this.issues.get(project.getId());
+      String identity = this.getIdentity();
+      if (identity == null)
+        return;
+      
+      long started = System.currentTimeMillis();
+      SnapshotStore.Content content = store.read(identity);
+      if (content == null)
+      {
+        store.delete();
+        return;
+      }
       
-      boolean own = this.settings.getOnlyOwnIssues();
-      boolean ua  = this.settings.getUnassignedIssues();
+      this.publish(content.projects,content.activities,content.issues,content.user);
       
-      if (issues == null || issues.size() == 0)
-        return issues;
-
-      List<Issue> result = new ArrayList<Issue>();
+      // Damit das erste Reload nur die Aenderungen seit dem letzten Lauf holt und die
+      // Gueltigkeitsdauer der Bereiche ueber den Neustart hinweg weiterlaeuft
+      this.watermark        = content.watermark;
+      this.userLoaded       = content.userLoaded;
+      this.projectsLoaded   = content.projectsLoaded;
+      this.activitiesLoaded = content.activitiesLoaded;
+      this.lastFullReload   = content.fullReload;
+      Logger.info("restored cache snapshot with " + content.issues.size() + " projects, took " + (System.currentTimeMillis() - started) + " millis");
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to restore cache snapshot, discarding",e);
+      store.delete();
+    }
+  }
+  
+  /**
+   * Speichert den aktuellen Cache, damit er beim naechsten Start sofort wieder zur Verfuegung steht.
+   */
+  private void save()
+  {
+    try
+    {
+      String identity = this.getIdentity();
+      if (identity == null)
+        return;
+      
+      CacheSnapshot current = this.getSnapshot();
+      SnapshotStore.Content content = new SnapshotStore.Content();
+      content.projects   = current.getProjects();
+      content.activities = current.getActivities();
+      content.issues     = current.getAllIssues();
+      content.user       = current.getUser();
+      content.watermark = this.watermark;
+      content.userLoaded       = this.userLoaded;
+      content.projectsLoaded   = this.projectsLoaded;
+      content.activitiesLoaded = this.activitiesLoaded;
+      content.fullReload       = this.lastFullReload;
+      this.getStore().write(identity,content);
+    }
+    catch (Exception e)
+    {
+      Logger.error("unable to save cache snapshot",e);
+    }
+  }
+  
+  /**
+   * Liefert eine Kennung fuer den Server und den User, zu dem die gecachten Daten gehoeren.
+   * Der API-Key wird hierbei nur als Hash verwendet.
+   * @return die Kennung oder NULL, wenn noch keine Zugangsdaten eingegeben wurden.
+   * @throws ApplicationException
+   */
+  private String getIdentity() throws ApplicationException
+  {
+    String url    = this.settings.getUrl();
+    String apiKey = this.settings.getApiKey();
+    if (StringUtils.isEmpty(url) || StringUtils.isEmpty(apiKey))
+      return null;
+    
+    return url + "|" + DigestUtils.sha1Hex(apiKey);
+  }
+  
+  /**
+   * Liefert den Speicher fuer den Cache.
+   * @return der Speicher fuer den Cache.
+   */
+  private synchronized SnapshotStore getStore()
+  {
+    if (this.store == null)
+    {
+      String dir = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+      this.store = new SnapshotStore(new File(dir,"cache.dat"));
+    }
+    return this.store;
+  }
+  
+  /**
+   * Sorgt dafuer, dass beim naechsten Reload der komplette Cache neu geladen wird
+   * und nicht nur die geaenderten Issues. Das gilt auch fuer User, Projekte und
+   * Aktivitaeten, deren Gueltigkeitsdauer noch nicht abgelaufen ist.
+   */
+  public void invalidate()
+  {
+    Logger.info("cache invalidated, next refresh will reload everything");
+    
+    // Ueber das Flag statt ueber das Zuruecksetzen der Watermark, da ein gerade
+    // laufender Reload die Watermark anschliessend wieder setzt
+    this.invalid = true;
+    
+    // Die Filter-Einstellungen koennen sich geaendert haben. Die Ansichten
+    // koennen wir aber sofort aus den gecachten Daten neu erzeugen.
+    // Hat ein Reload inzwischen einen neueren Stand uebernommen, darf der nicht
+    // durch den alten ueberschrieben werden. Der neue Stand wurde ohnehin mit den
+    // aktuellen Einstellungen erzeugt.
+    CacheSnapshot current = this.getSnapshot();
+    CacheSnapshot rebuilt = this.createSnapshot(current.getProjects(),current.getActivities(),current.getAllIssues(),current.getUser());
+    if (!this.snapshot.compareAndSet(current,rebuilt))
+      Logger.debug("cache was refreshed meanwhile, skipping rebuild of current snapshot");
+  }
+  
+  /**
+   * Prueft, ob die Issues komplett neu geladen werden muessen.
+   * @param invalid true, wenn der Cache invalidiert wurde.
+   * @return true, wenn die Issues komplett neu geladen werden muessen.
+   */
+  private boolean isFullReloadDue(boolean invalid)
+  {
+    if (invalid || this.watermark == null || !this.settings.getCacheReloadIncremental())
+      return true;
+    
+    return this.isExpired(this.lastFullReload,this.settings.getCacheFullReloadInterval());
+  }
+  
+  /**
+   * Prueft, ob die Daten eines Bereiches des Caches abgelaufen sind.
+   * @param loaded Zeitpunkt, zu dem die Daten zuletzt geladen wurden. 0, wenn sie noch nie geladen wurden.
+   * @param ttl die Gueltigkeitsdauer in Minuten.
+   * @return true, wenn die Daten neu geladen werden muessen.
+   */
+  private boolean isExpired(long loaded, int ttl)
+  {
+    return (System.currentTimeMillis() - loaded) >= ttl * 60 * 1000L;
+  }
+  
+  /**
+   * Aktualisiert den Cache. Die Bereiche User, Projekte (inclusive Mitgliedschaften) und
+   * Aktivitaeten werden nur neu geladen, wenn ihre jeweilige Gueltigkeitsdauer abgelaufen ist.
+   * Die Issues werden immer aktualisiert - je nach Einstellung komplett oder nur die Aenderungen.
+   * @param started Zeitpunkt, zu dem das Neuladen begonnen hat.
+   * @return die Anzahl der Issues, die seit dem letzten Reload geaendert wurden.
+   * @throws ApplicationException
+   */
+  private int refresh(long started) throws ApplicationException
+  {
+    // Eine Invalidierung ab jetzt muss zu einem weiteren kompletten Reload fuehren
+    boolean wasInvalid = this.invalid;
+    this.invalid = false;
 
-      User me = this.getCurrentUser();
-      for (Issue i:issues)
+    boolean done = false;
+    try
+    {
+      CacheSnapshot current = this.getSnapshot();
+      
+      // 1. User
+      Integer user = current.getUser();
+      boolean newUser = wasInvalid || user == null || this.isExpired(this.userLoaded,this.settings.getCacheUserTtl());
+      if (newUser)
       {
-        // Nur die direkt dem Projekt zugeordneten Aufgaben. Nicht die von Unter-Projekten.
-        // Die kommen ja in einem extra Ordner.
-        Integer p = i.getProjectId();
-        if (!p.equals(project.getId()))
-          continue;
-
-        // Keinem zugeordnet - sollen die geliefert werden?
-        Integer assignee = i.getAssigneeId();
-        if (assignee == null)
+        Logger.info("refreshing current user");
+        super.resetCurrentUser();
+        user = this.getCurrentUser().getId();
+        this.checkCancelled();
+      }
+      
+      // 2. Projekte. Hat sich der User geaendert, gehoert er auch zu anderen Projekten
+      List<ProjectTree> projects = current.getProjects();
+      boolean newProjects = wasInvalid || !user.equals(current.getUser()) || this.isExpired(this.projectsLoaded,this.settings.getCacheProjectsTtl());
+      if (newProjects)
+      {
+        Logger.info("refreshing projects");
+        projects = super.getProjects();
+        this.checkCancelled();
+      }
+      
+      // 3. Activities
+      List<TimeEntryActivity> activities = current.getActivities();
+      boolean newActivities = wasInvalid || this.isExpired(this.activitiesLoaded,this.settings.getCacheActivitiesTtl());
+      if (newActivities)
+      {
+        Logger.info("refreshing time-entry activities");
+        activities = super.getActivities();
+        this.checkCancelled();
+      }
+      
+      // 4. Issues. Sind Projekte hinzugekommen oder weggefallen, muessen sie komplett neu geladen werden
+      Date since = this.watermark;
+      Date mark = since;
+      int changes = 0;
+      Map<Integer,List<CompactIssue>> issues = null;
+      boolean full = this.isFullReloadDue(wasInvalid) || !this.getProjectIds(projects).equals(current.getAllIssues().keySet());
+      if (full)
+      {
+        Logger.info("refreshing all issues");
+        if (this.settings.getCacheReloadBulk())
+          issues = this.partition(projects,super.getAllIssues());
+        else
+          issues = this.reloadIssues(projects);
+        
+        mark = null;
+        for (List<CompactIssue> list:issues.values())
         {
-          if (ua) // Nur hinzufuegen, wenn gewuenscht
-            result.add(i);
-          continue;
+          mark = this.getWatermark(list,mark);
+          changes += this.countChanges(list,since);
         }
+        if (mark == null)
+          mark = new Date(started);
+      }
+      else
+      {
+        Logger.info("refreshing changed issues");
+        StringPool pool = new StringPool();
+        List<CompactIssue> open   = this.compact(super.getChangedIssues(since,false),pool);
+        this.checkCancelled();
+        List<CompactIssue> closed = this.compact(super.getChangedIssues(since,true),pool);
         
-        // Keine Einschraenkung beim User oder User passt
-        if (!own || assignee.equals(me))
-          result.add(i);
+        if (open.size() > 0 || closed.size() > 0)
+        {
+          issues = this.merge(current.getAllIssues(),open,closed);
+          mark = this.getWatermark(closed,this.getWatermark(open,since));
+          Logger.info("merged " + open.size() + " changed and " + closed.size() + " closed issues");
+          
+          // Die Abfrage liefert wegen ">=" auch die Issues, die genau zum Zeitpunkt des
+          // letzten Reload geaendert wurden. Die zaehlen wir nicht als Aenderung.
+          changes = this.countChanges(open,since) + this.countChanges(closed,since);
+        }
+        else
+        {
+          Logger.info("no changed issues found");
+        }
+      }
+      
+      // Und jetzt alles am Stueck uebernehmen. Ein abgebrochener Reload darf den Cache nicht ersetzen
+      this.checkCancelled();
+      if (issues != null || newUser || newProjects || newActivities)
+      {
+        this.publish(projects,activities,issues != null ? issues : current.getAllIssues(),user);
+        this.watermark = mark;
+        if (newUser)
+          this.userLoaded = started;
+        if (newProjects)
+          this.projectsLoaded = started;
+        if (newActivities)
+          this.activitiesLoaded = started;
+        if (full)
+          this.lastFullReload = started;
+        this.save();
       }
-      return result;
+      done = true;
+      return changes;
+    }
+    finally
+    {
+      // Der Reload hat nicht geklappt. Die Invalidierung gilt damit weiterhin
+      if (!done && wasInvalid)
+        this.invalid = true;
+    }
+  }
+  
+  /**
+   * Uebernimmt die geaenderten Issues in die Issues des Caches. Geschlossene Issues werden
+   * entfernt, verschobene in das neue Projekt uebernommen.
+   * @param current die aktuell gecachten Issues pro Projekt. Sie bleiben unveraendert.
+   * @param open die geaenderten, noch offenen Issues.
+   * @param closed die geaenderten, inzwischen geschlossenen Issues.
+   * @return die neue Map mit den Issues.
+   */
+  private Map<Integer,List<CompactIssue>> merge(Map<Integer,List<CompactIssue>> current, List<CompactIssue> open, List<CompactIssue> closed)
+  {
+    Set<Integer> changed = new HashSet<Integer>();
+    for (CompactIssue i:open)
+      changed.add(i.getId());
+    for (CompactIssue i:closed)
+      changed.add(i.getId());
 
+    // Die geaenderten Issues erstmal aus allen Projekten entfernen. Sie koennen
+    // auch in ein anderes Projekt verschoben worden sein. Die Listen werden
+    // dabei kopiert, die aktuell gecachten bleiben unveraendert.
+    Map<Integer,List<CompactIssue>> newIssues = new HashMap<Integer,List<CompactIssue>>();
+    for (Entry<Integer,List<CompactIssue>> e:current.entrySet())
+    {
+      List<CompactIssue> list = new ArrayList<CompactIssue>(e.getValue().size());
+      for (CompactIssue i:e.getValue())
+      {
+        if (!changed.contains(i.getId()))
+          list.add(i);
+      }
+      newIssues.put(e.getKey(),list);
     }
+    
+    // Jetzt die noch offenen wieder hinzufuegen
+    for (CompactIssue i:open)
+    {
+      List<CompactIssue> list = newIssues.get(i.getProjectId());
+      if (list != null)
+        list.add(i);
+    }
+    return newIssues;
   }
   
   /**
-   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#getActivities()
+   * Liefert die IDs aller Projekte in dem Projekt-Baum.
+   * @param projects der Projekt-Baum.
+   * @return die IDs der Projekte.
    */
-  @Override
-  public List<TimeEntryActivity> getActivities() throws ApplicationException
+  private Set<Integer> getProjectIds(List<ProjectTree> projects)
   {
-    // Wir liefern hier generell nur gecachten Daten zurueck
-    synchronized (lock)
+    List<Project> list = new ArrayList<Project>();
+    this.collect(projects,list);
+    
+    Set<Integer> ids = new HashSet<Integer>();
+    for (Project p:list)
+      ids.add(p.getId());
+    return ids;
+  }
+  
+  /**
+   * Zaehlt die Issues, die nach dem angegebenen Zeitpunkt geaendert wurden.
+   * @param issues die Issues.
+   * @param since der Zeitpunkt. Ist er NULL, zaehlen alle Issues.
+   * @return die Anzahl der geaenderten Issues.
+   */
+  private int countChanges(List<CompactIssue> issues, Date since)
+  {
+    int count = 0;
+    for (CompactIssue i:issues)
     {
-      return this.activities;
+      Date d = i.getUpdatedOn();
+      if (since == null || (d != null && d.after(since)))
+        count++;
     }
+    return count;
   }
   
   /**
-   * @see de.willuhn.jameica.redmine.service.AbstractRedmineService#reconnect()
+   * Uebernimmt die Daten als neuen Stand in den Cache.
+   * @param projects die Projekte.
+   * @param activities die Aktivitaeten.
+   * @param issues die Issues pro Projekt.
+   * @param user die ID des aktuellen Users. Kann NULL sein, wenn er nicht bekannt ist.
    */
-  @Override
-  public void reconnect()
+  private void publish(List<ProjectTree> projects, List<TimeEntryActivity> activities, Map<Integer,List<CompactIssue>> issues, Integer user)
   {
-    // Wir laden die Daten erstmal komplett neu, ohne die GUI zu blockieren und
-    // uebernehmen die Daten dann en bloc
-    super.reconnect();
-
-    long started = System.currentTimeMillis();
-    Logger.info("refreshing cache");
+    this.snapshot.set(this.createSnapshot(projects,activities,issues,user));
+  }
+  
+  /**
+   * Erzeugt einen neuen Stand des Caches mit den aktuellen Filter-Einstellungen.
+   * @param projects die Projekte.
+   * @param activities die Aktivitaeten.
+   * @param issues die Issues pro Projekt.
+   * @param user die ID des aktuellen Users. Kann NULL sein, wenn er nicht bekannt ist.
+   * @return der neue Stand.
+   */
+  private CacheSnapshot createSnapshot(List<ProjectTree> projects, List<TimeEntryActivity> activities, Map<Integer,List<CompactIssue>> issues, Integer user)
+  {
+    boolean own = this.settings.getOnlyOwnIssues();
+    boolean ua  = this.settings.getUnassignedIssues();
+    return new CacheSnapshot(this.generation.incrementAndGet(),projects,activities,issues,user,own,ua);
+  }
+  
+  /**
+   * Liefert den juengsten Aenderungszeitpunkt der Issues.
+   * @param issues die Issues.
+   * @param mark der bisher juengste Aenderungszeitpunkt. Kann NULL sein.
+   * @return der juengste Aenderungszeitpunkt.
+   */
+  private Date getWatermark(List<CompactIssue> issues, Date mark)
+  {
+    for (CompactIssue i:issues)
+    {
+      Date d = i.getUpdatedOn();
+      if (d != null && (mark == null || d.after(mark)))
+        mark = d;
+    }
+    return mark;
+  }
+  
+  /**
+   * Laedt die Issues aller Projekte in dem Projekt-Baum parallel neu.
+   * Die Anzahl der gleichzeitigen Abrufe ist ueber die Einstellungen begrenzt.
+   * @param projects der Projekt-Baum.
+   * @return die neue Map mit den Issues.
+   * @throws ApplicationException
+   */
+  private Map<Integer,List<CompactIssue>> reloadIssues(List<ProjectTree> projects) throws ApplicationException
+  {
+    List<Project> list = new ArrayList<Project>();
+    this.collect(projects,list);
+    
+    int threads = Math.max(1,Math.min(this.settings.getCacheReloadThreads(),list.size()));
+    Logger.info("fetching issues of " + list.size() + " projects using " + threads + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(threads,new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"redmine-reload-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
     
+    final CancellationToken token = CancellationToken.current();
     try
     {
-      // 1. Projekte
-      List<ProjectTree> newProjects = super.getProjects();
-      
-      // 2. Activities
-      List<TimeEntryActivity> newActivities = super.getActivities();
-      
-      // 3. Issues
-      Map<Integer,List<Issue>> newIssues = new HashMap<Integer,List<Issue>>();
-      for (ProjectTree p:newProjects)
+      Map<Integer,Future<List<Issue>>> futures = new LinkedHashMap<Integer,Future<List<Issue>>>();
+      for (final Project project:list)
       {
-        this.reloadIssues(p,newIssues);
+        futures.put(project.getId(),pool.submit(new Callable<List<Issue>>() {
+          public List<Issue> call() throws Exception
+          {
+            // Das Token gilt auch fuer die Requests in den Threads des Pools
+            if (token != null)
+              token.bind();
+            try
+            {
+              return CachingRedmineService.super.getIssues(project);
+            }
+            finally
+            {
+              if (token != null)
+                token.unbind();
+            }
+          }
+        }));
       }
       
-      // Und jetzt alles am Stueck uebernehmen
-      synchronized (lock)
+      StringPool strings = new StringPool();
+      Map<Integer,List<CompactIssue>> newIssues = new HashMap<Integer,List<CompactIssue>>();
+      for (Entry<Integer,Future<List<Issue>>> e:futures.entrySet())
       {
-        this.projects = newProjects;
-        this.activities = newActivities;
-        this.issues = newIssues;
+        newIssues.put(e.getKey(),this.compact(e.getValue().get(),strings));
       }
+      return newIssues;
+    }
+    catch (ExecutionException ee)
+    {
+      Throwable cause = ee.getCause();
+      if (cause instanceof ApplicationException)
+        throw (ApplicationException) cause;
       
-      Logger.info("refreshing finished, loaded " + + this.issues.size() + " projects, took " + ((System.currentTimeMillis() - started) / 1000) + " seconds");
+      Logger.error("unable to reload issues",cause);
+      throw new ApplicationException(i18n.tr("Abruf der Aufgaben fehlgeschlagen: {0}",cause.getMessage()),cause);
     }
-    catch (ApplicationException ae)
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new ApplicationException(i18n.tr("Abruf der Aufgaben abgebrochen"),ie);
+    }
+    finally
     {
-      Application.getMessagingFactory().sendMessage(new StatusBarMessage(ae.getMessage(),StatusBarMessage.TYPE_ERROR));
+      // Falls ein Abruf fehlgeschlagen ist, brauchen wir die restlichen auch nicht mehr
+      pool.shutdownNow();
     }
   }
   
   /**
-   * Fuehrt ein rekursives Reload der Issues in dem Project-Baum durch.
-   * @param p der Projekt-Baum.
-   * @param newIssues die neue Map mit den Issues.
-   * @throws ApplicationException
+   * Verteilt die mit einer gemeinsamen Abfrage geladenen Issues auf die Projekte.
+   * Issues von Projekten, die nicht im Projekt-Baum enthalten sind, werden ignoriert.
+   * @param projects der Projekt-Baum.
+   * @param issues die Issues aller Projekte.
+   * @return die neue Map mit den Issues.
    */
-  private void reloadIssues(ProjectTree p, Map<Integer,List<Issue>> newIssues) throws ApplicationException
+  private Map<Integer,List<CompactIssue>> partition(List<ProjectTree> projects, List<Issue> issues)
   {
-    // Das Projekt selbst
-    Project project = p.getProject();
-    newIssues.put(project.getId(),super.getIssues(project));
+    List<Project> list = new ArrayList<Project>();
+    this.collect(projects,list);
+    
+    Map<Integer,List<CompactIssue>> newIssues = new HashMap<Integer,List<CompactIssue>>();
+    for (Project p:list)
+    {
+      newIssues.put(p.getId(),new ArrayList<CompactIssue>());
+    }
     
-    // Jetzt die Kinder
-    for (ProjectTree child:p.getChildren())
+    StringPool pool = new StringPool();
+    for (Issue i:issues)
+    {
+      List<CompactIssue> l = newIssues.get(i.getProjectId());
+      if (l != null)
+        l.add(this.compact(i,pool));
+    }
+    return newIssues;
+  }
+  
+  /**
+   * Wandelt die Issues in die kompakte Form fuer den Cache um.
+   * @param issues die vollstaendigen Issues.
+   * @param pool Pool fuer die Strings, damit gleiche Titel nur einmal im Speicher liegen.
+   * @return die kompakten Issues.
+   */
+  private List<CompactIssue> compact(List<Issue> issues, StringPool pool)
+  {
+    List<CompactIssue> result = new ArrayList<CompactIssue>(issues.size());
+    for (Issue i:issues)
+    {
+      result.add(this.compact(i,pool));
+    }
+    return result;
+  }
+  
+  /**
+   * Wandelt das Issue in die kompakte Form fuer den Cache um.
+   * @param issue das vollstaendige Issue.
+   * @param pool Pool fuer die Strings, damit gleiche Titel nur einmal im Speicher liegen.
+   * @return das kompakte Issue.
+   */
+  private CompactIssue compact(Issue issue, StringPool pool)
+  {
+    return new CompactIssue(issue.getId(),issue.getProjectId(),issue.getAssigneeId(),pool.get(issue.getSubject()),issue.getUpdatedOn());
+  }
+  
+  /**
+   * Sammelt rekursiv die Projekte aus dem Projekt-Baum ein.
+   * @param projects der Projekt-Baum.
+   * @param list die Liste, in der die Projekte gesammelt werden.
+   */
+  private void collect(List<ProjectTree> projects, List<Project> list)
+  {
+    for (ProjectTree p:projects)
     {
-      this.reloadIssues(child,newIssues);
+      list.add(p.getProject());
+      this.collect(p.getChildren(),list);
     }
   }
 }
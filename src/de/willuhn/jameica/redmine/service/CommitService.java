@@ -0,0 +1,670 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.annotation.Resource;
+
+import com.taskadapter.redmineapi.bean.TimeEntry;
+
+import de.willuhn.datasource.Service;
+import de.willuhn.jameica.messaging.StatusBarMessage;
+import de.willuhn.jameica.redmine.DataRejectedException;
+import de.willuhn.jameica.redmine.Plugin;
+import de.willuhn.jameica.redmine.ServerUnavailableException;
+import de.willuhn.jameica.redmine.Settings;
+import de.willuhn.jameica.system.Application;
+import de.willuhn.logging.Logger;
+import de.willuhn.util.ApplicationException;
+import de.willuhn.util.I18N;
+
+/**
+ * Service, der abgeschlossene Zeiterfassungen im Hintergrund an den Server uebertraegt.
+ * Die Zeiterfassungen landen erst in einem Postausgang, damit die GUI nicht blockiert,
+ * wenn der Server langsam oder nicht erreichbar ist. Der Postausgang wird im Arbeitsverzeichnis
+ * gespeichert und bleibt damit auch ueber einen Neustart hinweg erhalten. Ist der Server nicht
+ * erreichbar, wird es mit wachsendem Abstand erneut versucht. Sobald er wieder erreichbar ist,
+ * wird der komplette Postausgang am Stueck uebertragen. Zeiterfassungen, die der Server
+ * bereits kennt, werden dabei nicht erneut uebertragen.
+ * Optional werden die Zeiterfassungen erst gesammelt und in regelmaessigen Abstaenden
+ * pro Issue, Aktivitaet und Tag zusammengefasst in den Postausgang gelegt.
+ */
+public class CommitService implements Service
+{
+  private final static I18N i18n = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getI18N();
+
+  /**
+   * Wartezeit vor dem ersten erneuten Versuch.
+   */
+  private final static long BACKOFF_MIN = 30 * 1000L;
+
+  /**
+   * Maximale Wartezeit zwischen zwei Versuchen.
+   */
+  private final static long BACKOFF_MAX = 15 * 60 * 1000L;
+
+  /**
+   * Maximale Abweichung der Stunden, bis zu der eine Zeiterfassung auf dem Server als Duplikat gilt.
+   */
+  private final static float HOURS_TOLERANCE = 0.01f;
+
+  /**
+   * Maximale Wartezeit beim Beenden, bis der Postausgang uebertragen ist.
+   */
+  private final static long SHUTDOWN_TIMEOUT = 5000L;
+
+  @Resource
+  private CachingRedmineService service;
+
+  @Resource
+  private Settings settings;
+
+  private final List<TimeEntry> outbox = new LinkedList<TimeEntry>();
+  private final List<TimeEntry> batch = new LinkedList<TimeEntry>();
+  private final Object wakeup = new Object();
+  private TimeEntryOutbox store = null;
+  private TimeEntryOutbox batchStore = null;
+  private Worker worker = null;
+  private Timer timer = null;
+  private volatile long lastFlush = 0L;
+
+  // true, wenn nicht sicher ist, ob der Server die Zeiterfassungen bereits erhalten hat
+  private volatile boolean verify = false;
+
+  /**
+   * Legt die abgeschlossene Zeiterfassung in den Postausgang. Die Methode kehrt sofort zurueck.
+   * Sobald sie gespeichert ist, wird sie im Journal der laufenden Zeiterfassung als erledigt vermerkt.
+   * @param entry die abgeschlossene Zeiterfassung.
+   */
+  public void submit(TimeEntry entry)
+  {
+    boolean saved = false;
+    if (this.settings.getCommitConsolidate())
+    {
+      Logger.info("collecting time entry for issue #" + entry.getIssueId());
+      synchronized (this.batch)
+      {
+        this.batch.add(entry);
+        saved = this.saveBatch();
+      }
+    }
+    else
+    {
+      Logger.info("queueing time entry for issue #" + entry.getIssueId());
+      synchronized (this.outbox)
+      {
+        this.outbox.add(entry);
+        saved = this.save();
+        this.outbox.notifyAll();
+      }
+    }
+
+    // Konnte sie nicht gespeichert werden, bleibt sie im Journal fuer den naechsten Start
+    if (saved)
+      this.service.confirmTimeEntry();
+  }
+
+  /**
+   * Liefert die Anzahl der Zeiterfassungen, die noch nicht uebertragen wurden.
+   * @return die Anzahl der noch nicht uebertragenen Zeiterfassungen.
+   */
+  public int getPending()
+  {
+    synchronized (this.outbox)
+    {
+      return this.outbox.size();
+    }
+  }
+
+  /**
+   * Liefert die gesammelten Zeiterfassungen so, wie sie beim naechsten Mal uebertragen werden,
+   * also bereits zusammengefasst.
+   * @return die gesammelten und zusammengefassten Zeiterfassungen.
+   */
+  public List<TimeEntry> getBatch()
+  {
+    synchronized (this.batch)
+    {
+      return new TimeEntryMerger().merge(this.batch);
+    }
+  }
+
+  /**
+   * Fasst die gesammelten Zeiterfassungen zusammen und legt sie in den Postausgang.
+   * Die Methode kehrt sofort zurueck, die Uebertragung erfolgt im Hintergrund.
+   */
+  public void flush()
+  {
+    this.lastFlush = System.currentTimeMillis();
+    synchronized (this.batch)
+    {
+      if (this.batch.size() == 0)
+        return;
+
+      List<TimeEntry> merged = new TimeEntryMerger().merge(this.batch);
+      Logger.info("merged " + this.batch.size() + " collected time entries into " + merged.size());
+
+      // Erst in den Postausgang und dann aus dem Sammelbehaelter entfernen, damit bei
+      // einem Absturz dazwischen nichts verloren geht
+      synchronized (this.outbox)
+      {
+        this.outbox.addAll(merged);
+        this.save();
+        this.outbox.notifyAll();
+      }
+      this.batch.clear();
+      this.saveBatch();
+    }
+  }
+
+  /**
+   * Beendet die Wartezeit nach einem Verbindungsfehler vorzeitig, weil der Server
+   * wieder erreichbar ist. Der Postausgang wird dann sofort uebertragen.
+   */
+  public void resume()
+  {
+    synchronized (this.wakeup)
+    {
+      this.wakeup.notifyAll();
+    }
+  }
+
+  /**
+   * @see de.willuhn.datasource.Service#getName()
+   */
+  @Override
+  public String getName() throws RemoteException
+  {
+    return "commit-service";
+  }
+
+  /**
+   * @see de.willuhn.datasource.Service#isStartable()
+   */
+  @Override
+  public boolean isStartable() throws RemoteException
+  {
+    return !this.isStarted();
+  }
+
+  /**
+   * @see de.willuhn.datasource.Service#isStarted()
+   */
+  @Override
+  public boolean isStarted() throws RemoteException
+  {
+    return this.worker != null;
+  }
+
+  /**
+   * @see de.willuhn.datasource.Service#start()
+   */
+  @Override
+  public void start() throws RemoteException
+  {
+    // Die beim letzten Mal nicht uebertragenen Zeiterfassungen laden. Wir wissen nicht,
+    // ob der Server sie beim letzten Versuch vielleicht doch noch erhalten hat.
+    try
+    {
+      List<TimeEntry> entries = this.getStore().read();
+      if (entries.size() > 0)
+      {
+        Logger.info("restored " + entries.size() + " pending time entries");
+        synchronized (this.outbox)
+        {
+          this.outbox.addAll(0,entries);
+        }
+        this.verify = true;
+      }
+      
+      entries = this.getBatchStore().read();
+      if (entries.size() > 0)
+      {
+        Logger.info("restored " + entries.size() + " collected time entries");
+        synchronized (this.batch)
+        {
+          this.batch.addAll(0,entries);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to read time entry outbox",e);
+    }
+    
+    // Die Anwendung ist zwischen Abschluss und Speicherung einer Zeiterfassung abgestuerzt
+    TimeEntry finished = this.service.getFinishedTimeEntry();
+    if (finished != null)
+    {
+      if (this.isQueued(finished))
+      {
+        this.service.confirmTimeEntry();
+      }
+      else
+      {
+        Logger.info("queueing time entry for issue #" + finished.getIssueId() + " restored from journal");
+        this.submit(finished);
+      }
+    }
+
+    this.worker = new Worker();
+    this.worker.start();
+    
+    // Prueft jede Minute, ob die gesammelten Zeiterfassungen faellig sind. So wirkt
+    // eine Aenderung des Intervalls in den Einstellungen ohne Neustart.
+    this.lastFlush = System.currentTimeMillis();
+    this.timer = new Timer("redmine-consolidate",true);
+    this.timer.schedule(new TimerTask() {
+      public void run()
+      {
+        long interval = settings.getCommitConsolidateInterval() * 60 * 1000L;
+        if (!settings.getCommitConsolidate() || (System.currentTimeMillis() - lastFlush) >= interval)
+          flush();
+      }
+    },60 * 1000L,60 * 1000L);
+  }
+
+  /**
+   * @see de.willuhn.datasource.Service#stop(boolean)
+   */
+  @Override
+  public void stop(boolean arg0) throws RemoteException
+  {
+    if (this.timer != null)
+    {
+      this.timer.cancel();
+      this.timer = null;
+    }
+    
+    // Die gesammelten Zeiterfassungen noch uebertragen. Ohne Verbindung zum Server
+    // warten wir nicht, sie bleiben dann bis zum naechsten Start gespeichert.
+    this.flush();
+    if (this.worker != null && !this.service.isOffline())
+      this.awaitDelivery(SHUTDOWN_TIMEOUT);
+    
+    try
+    {
+      if (this.worker != null)
+      {
+        this.worker.interrupt();
+        this.worker.join(5000L);
+      }
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      this.worker = null;
+    }
+
+    // Was jetzt noch im Postausgang liegt, ist gespeichert und wird beim naechsten Start uebertragen
+    int pending = this.getPending();
+    if (pending > 0)
+      Logger.info(pending + " time entries not committed yet, will retry on next start");
+  }
+
+  /**
+   * Wartet, bis der Postausgang leer ist.
+   * @param timeout maximale Wartezeit in Millisekunden.
+   */
+  private void awaitDelivery(long timeout)
+  {
+    long until = System.currentTimeMillis() + timeout;
+    try
+    {
+      synchronized (this.outbox)
+      {
+        long wait = 0L;
+        while (this.outbox.size() > 0 && (wait = until - System.currentTimeMillis()) > 0)
+          this.outbox.wait(wait);
+      }
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Uebertraegt die Zeiterfassungen an den Server. Erfolgreich uebertragene und
+   * vom Server als ungueltig abgelehnte Zeiterfassungen werden aus dem Postausgang entfernt.
+   * Bei allen anderen Fehlern bleiben sie fuer einen spaeteren Versuch im Postausgang.
+   * @param batch die zu uebertragenden Zeiterfassungen.
+   * @return die Anzahl der uebertragenen Zeiterfassungen.
+   * @throws ServerUnavailableException wenn der Server nicht erreichbar ist.
+   * @throws ApplicationException bei anderen Fehlern, die einen spaeteren Versuch erfordern.
+   */
+  private int deliver(List<TimeEntry> batch) throws ApplicationException
+  {
+    if (this.verify)
+      batch = this.removeDuplicates(batch);
+
+    int count = 0;
+    for (TimeEntry entry:batch)
+    {
+      try
+      {
+        // Antwortet der Server bei diesem Request nicht, wissen wir nicht, ob er ihn trotzdem erhalten hat
+        this.verify = true;
+        this.service.submitTimeEntry(entry);
+        this.verify = false;
+        count++;
+      }
+      catch (DataRejectedException dre)
+      {
+        // Nur wenn der Server die Zeiterfassung ausdruecklich abgelehnt hat, wuerde
+        // ein erneuter Versuch nichts bringen
+        Logger.error("time entry for issue #" + entry.getIssueId() + " rejected by server, lost " + entry.getHours() + " hours",dre);
+        Application.getMessagingFactory().sendMessage(new StatusBarMessage(dre.getMessage(),StatusBarMessage.TYPE_ERROR));
+      }
+      catch (RuntimeException re)
+      {
+        // Unerwarteter Fehler. Die Zeiterfassung bleibt im Postausgang und wird spaeter erneut versucht
+        throw new ApplicationException(i18n.tr("bernehmen der erfassten Arbeitszeit fehlgeschlagen: {0}",re.getMessage()),re);
+      }
+      this.remove(entry);
+    }
+    return count;
+  }
+
+  /**
+   * Entfernt die Zeiterfassungen, die der Server bereits kennt, aus dem Postausgang.
+   * Hierfuer werden die Zeiterfassungen des Users seit dem Tag der aeltesten Zeiterfassung
+   * mit einer gemeinsamen Abfrage vom Server geholt. Jede Zeiterfassung vom Server wird dabei
+   * hoechstens einer Zeiterfassung aus dem Postausgang zugeordnet.
+   * @param batch die zu uebertragenden Zeiterfassungen.
+   * @return die Zeiterfassungen, die noch uebertragen werden muessen.
+   * @throws ServerUnavailableException wenn der Server nicht erreichbar ist.
+   */
+  private List<TimeEntry> removeDuplicates(List<TimeEntry> batch) throws ServerUnavailableException
+  {
+    Date from = null;
+    for (TimeEntry e:batch)
+    {
+      if (from == null || e.getSpentOn().before(from))
+        from = e.getSpentOn();
+    }
+
+    List<TimeEntry> existing = null;
+    try
+    {
+      existing = this.service.getTimeEntries(from);
+    }
+    catch (ServerUnavailableException sue)
+    {
+      throw sue;
+    }
+    catch (ApplicationException ae)
+    {
+      // Dann uebertragen wir lieber doppelt als gar nicht
+      Logger.error("unable to check for already committed time entries",ae);
+      return batch;
+    }
+
+    // Kopie, da zugeordnete Zeiterfassungen daraus entfernt werden
+    existing = new ArrayList<TimeEntry>(existing);
+    DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+    List<TimeEntry> result = new ArrayList<TimeEntry>();
+    for (TimeEntry e:batch)
+    {
+      TimeEntry match = this.find(existing,e,df);
+      if (match != null)
+      {
+        existing.remove(match);
+        Logger.info("time entry for issue #" + e.getIssueId() + " already committed, skipping");
+        this.remove(e);
+      }
+      else
+      {
+        result.add(e);
+      }
+    }
+    this.verify = false;
+    return result;
+  }
+
+  /**
+   * Sucht die Zeiterfassung in der Liste der Zeiterfassungen vom Server.
+   * Issue, Tag, Stunden und Kommentar allein genuegen nicht, da zwei gleich lange Zeiterfassungen
+   * auf dem selben Issue am selben Tag identisch aussehen. Daher kommen nur Zeiterfassungen in
+   * Frage, die der Server erst nach dem Beginn der Zeiterfassung angelegt hat. Eigentlich ginge
+   * das erst ab deren Abschluss, der Zeitpunkt stammt aber von der Uhr des Clients, der
+   * Anlage-Zeitpunkt von der des Servers. Die erfasste Dauer dient so als Spielraum, falls die
+   * Uhr des Clients vorgeht. Von mehreren passenden wird die am fruehesten angelegte genommen.
+   * @param existing die Zeiterfassungen vom Server.
+   * @param entry die zu pruefende Zeiterfassung.
+   * @param df Format fuer den Vergleich des Tages.
+   * @return die passende Zeiterfassung vom Server oder NULL, wenn sie dort noch nicht existiert.
+   */
+  private TimeEntry find(List<TimeEntry> existing, TimeEntry entry, DateFormat df)
+  {
+    String day = df.format(entry.getSpentOn());
+    float hours = entry.getHours() != null ? entry.getHours().floatValue() : 0f;
+
+    // Der Server speichert den Zeitpunkt nur sekundengenau
+    long started = entry.getCreatedOn().getTime() / 1000L * 1000L;
+
+    TimeEntry match = null;
+    for (TimeEntry e:existing)
+    {
+      if (e.getIssueId() == null || !e.getIssueId().equals(entry.getIssueId()))
+        continue;
+      if (e.getSpentOn() == null || !day.equals(df.format(e.getSpentOn())))
+        continue;
+      if (e.getHours() == null || Math.abs(e.getHours().floatValue() - hours) > HOURS_TOLERANCE)
+        continue;
+      if (e.getComment() == null || !e.getComment().equals(entry.getComment()))
+        continue;
+      if (e.getCreatedOn() == null || e.getCreatedOn().getTime() < started)
+        continue;
+      if (match == null || e.getCreatedOn().before(match.getCreatedOn()))
+        match = e;
+    }
+    return match;
+  }
+
+  /**
+   * Entfernt die Zeiterfassung aus dem Postausgang.
+   * @param entry die Zeiterfassung.
+   */
+  private void remove(TimeEntry entry)
+  {
+    synchronized (this.outbox)
+    {
+      // Die Zeiterfassungen haben noch keine ID, daher vergleichen wir die Instanz
+      Iterator<TimeEntry> it = this.outbox.iterator();
+      while (it.hasNext())
+      {
+        if (it.next() == entry)
+        {
+          it.remove();
+          break;
+        }
+      }
+      this.save();
+      this.outbox.notifyAll();
+    }
+  }
+
+  /**
+   * Speichert den Postausgang.
+   * Muss innerhalb von synchronized (outbox) aufgerufen werden.
+   * @return true, wenn er gespeichert wurde.
+   */
+  private boolean save()
+  {
+    try
+    {
+      this.getStore().write(this.outbox);
+      return true;
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to save time entry outbox",e);
+      return false;
+    }
+  }
+
+  /**
+   * Speichert die gesammelten Zeiterfassungen.
+   * Muss innerhalb von synchronized (batch) aufgerufen werden.
+   * @return true, wenn sie gespeichert wurden.
+   */
+  private boolean saveBatch()
+  {
+    try
+    {
+      this.getBatchStore().write(this.batch);
+      return true;
+    }
+    catch (IOException e)
+    {
+      Logger.error("unable to save collected time entries",e);
+      return false;
+    }
+  }
+  
+  /**
+   * Prueft, ob die Zeiterfassung bereits im Postausgang oder bei den gesammelten Zeiterfassungen liegt.
+   * Der Beginn einer Zeiterfassung ist eindeutig, da immer nur eine gleichzeitig laeuft.
+   * @param entry die Zeiterfassung.
+   * @return true, wenn sie bereits gespeichert ist.
+   */
+  private boolean isQueued(TimeEntry entry)
+  {
+    List<TimeEntry> all = new ArrayList<TimeEntry>();
+    synchronized (this.outbox)
+    {
+      all.addAll(this.outbox);
+    }
+    synchronized (this.batch)
+    {
+      all.addAll(this.batch);
+    }
+    for (TimeEntry e:all)
+    {
+      if (entry.getIssueId() != null && entry.getIssueId().equals(e.getIssueId()) && entry.getCreatedOn().equals(e.getCreatedOn()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Liefert den Speicher fuer die gesammelten Zeiterfassungen.
+   * @return der Speicher fuer die gesammelten Zeiterfassungen.
+   */
+  private synchronized TimeEntryOutbox getBatchStore()
+  {
+    if (this.batchStore == null)
+    {
+      String dir = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+      this.batchStore = new TimeEntryOutbox(new File(dir,"batch.dat"));
+    }
+    return this.batchStore;
+  }
+
+  /**
+   * Liefert den Speicher fuer den Postausgang.
+   * @return der Speicher fuer den Postausgang.
+   */
+  private synchronized TimeEntryOutbox getStore()
+  {
+    if (this.store == null)
+    {
+      String dir = Application.getPluginLoader().getPlugin(Plugin.class).getResources().getWorkPath();
+      this.store = new TimeEntryOutbox(new File(dir,"outbox.dat"));
+    }
+    return this.store;
+  }
+
+  /**
+   * Der Worker, der den Postausgang abarbeitet.
+   */
+  private class Worker extends Thread
+  {
+    /**
+     * ct.
+     */
+    private Worker()
+    {
+      super("redmine-commit");
+      this.setDaemon(true);
+    }
+
+    /**
+     * @see java.lang.Thread#run()
+     */
+    @Override
+    public void run()
+    {
+      long backoff = 0L;
+      try
+      {
+        while (!this.isInterrupted())
+        {
+          // Wir warten, bis etwas im Postausgang liegt, und nehmen dann alles mit
+          List<TimeEntry> batch = null;
+          synchronized (outbox)
+          {
+            while (outbox.size() == 0)
+              outbox.wait();
+            batch = new ArrayList<TimeEntry>(outbox);
+          }
+
+          try
+          {
+            int count = deliver(batch);
+            if (count == 1)
+              Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Erfasste Stunden bernommen"),StatusBarMessage.TYPE_SUCCESS));
+            else if (count > 1)
+              Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("{0} Zeiterfassungen bernommen",Integer.toString(count)),StatusBarMessage.TYPE_SUCCESS));
+            backoff = 0L;
+          }
+          catch (ApplicationException ae)
+          {
+            backoff = backoff == 0L ? BACKOFF_MIN : Math.min(backoff * 2,BACKOFF_MAX);
+            if (ae instanceof ServerUnavailableException)
+            {
+              Logger.warn("server not available, " + getPending() + " time entries pending, retrying in " + (backoff / 1000L) + " seconds");
+              Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("Redmine nicht erreichbar. {0} Zeiterfassungen werden spter bertragen",Integer.toString(getPending())),StatusBarMessage.TYPE_INFO));
+            }
+            else
+            {
+              Logger.error("unable to commit time entries, " + getPending() + " time entries pending, retrying in " + (backoff / 1000L) + " seconds",ae);
+              Application.getMessagingFactory().sendMessage(new StatusBarMessage(i18n.tr("{0} Die Zeiterfassungen werden spter erneut bertragen.",ae.getMessage()),StatusBarMessage.TYPE_ERROR));
+            }
+            synchronized (wakeup)
+            {
+              wakeup.wait(backoff);
+            }
+          }
+        }
+      }
+      catch (InterruptedException ie)
+      {
+        Logger.info("commit worker stopped");
+      }
+    }
+  }
+}
+
+
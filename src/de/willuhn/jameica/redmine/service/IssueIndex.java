@@ -0,0 +1,542 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import de.willuhn.jameica.redmine.beans.CompactIssue;
+import de.willuhn.jameica.redmine.beans.ProjectTree;
+
+/**
+ * Such-Index ueber die Issues eines Cache-Standes.
+ * Gesucht wird per Prefix ueber die Woerter im Titel der Issues und in den Namen
+ * der Projekte (inclusive der Eltern-Projekte). Mit "#1234" kann direkt nach der
+ * ID gesucht werden.
+ * Der Index wird einmalig beim Erzeugen des Cache-Standes aufgebaut und danach
+ * nicht mehr veraendert. Er kann daher ohne Synchronisierung gelesen werden.
+ */
+class IssueIndex
+{
+  // Punkte fuer die Bewertung der Treffer
+  private final static int SCORE_SUBJECT_EXACT  = 4;
+  private final static int SCORE_SUBJECT_PREFIX = 2;
+  private final static int SCORE_PROJECT        = 1;
+
+  // Kurze Prefixe passen auf einen grossen Teil des Index. Dann werden nur die
+  // neuesten Kandidaten (hoechste ID) bewertet, der User tippt ohnehin meist weiter.
+  private final static int SHORT_PREFIX = 3;
+  private final static int SHORT_SCAN   = 5000;
+
+  // Die Issues, gruppiert nach Projekt, und die Woerter pro Issue
+  private final CompactIssue[] issues;
+  private final List<CompactIssue> list;
+  private final int[] numbers;
+  private final int[] newest;
+  private final String[][] subjects;
+  private final String[][] paths;
+  private final Map<Integer,CompactIssue> ids = new HashMap<Integer,CompactIssue>();
+
+  // Sortierte Woerter aus den Titeln und das Issue, in dem sie vorkommen
+  private final String[] subjectKeys;
+  private final int[] subjectDocs;
+
+  // Sortierte Woerter aus den Projekt-Namen und der Bereich der Issues des Projektes
+  private final String[] projectKeys;
+  private final int[] projectFrom;
+  private final int[] projectTo;
+
+  /**
+   * ct.
+   * @param projects der Projekt-Baum.
+   * @param views die anzuzeigenden Issues pro Projekt.
+   */
+  IssueIndex(List<ProjectTree> projects, Map<Integer,List<CompactIssue>> views)
+  {
+    Builder b = new Builder(views);
+    b.add(projects,new String[0]);
+
+    this.issues   = b.issues.toArray(new CompactIssue[b.issues.size()]);
+    this.subjects = b.subjects.toArray(new String[b.subjects.size()][]);
+    this.paths    = b.paths.toArray(new String[b.paths.size()][]);
+    this.list     = Collections.unmodifiableList(Arrays.asList(this.issues));
+
+    this.numbers = new int[this.issues.length];
+    for (int doc=0;doc<this.issues.length;++doc)
+    {
+      CompactIssue i = this.issues[doc];
+      this.numbers[doc] = i.getId();
+      this.ids.put(i.getId(),i);
+    }
+
+    // Die Issues stehen in der Reihenfolge des Projekt-Baumes. Fuer die Begrenzung bei
+    // kurzen Prefixen brauchen wir zusaetzlich die Reihenfolge nach ID, die neuesten zuerst
+    long[] order = new long[this.issues.length];
+    for (int doc=0;doc<order.length;++doc)
+    {
+      order[doc] = ((long) this.numbers[doc] << 32) | doc;
+    }
+    Arrays.sort(order);
+    this.newest = new int[order.length];
+    for (int k=0;k<order.length;++k)
+    {
+      this.newest[k] = (int) order[order.length - 1 - k];
+    }
+
+    // Woerter aus den Titeln
+    List<Posting> postings = new ArrayList<Posting>();
+    for (int doc=0;doc<this.subjects.length;++doc)
+    {
+      for (String s:this.subjects[doc])
+      {
+        postings.add(new Posting(s,doc,doc + 1));
+      }
+    }
+    Collections.sort(postings);
+    this.subjectKeys = new String[postings.size()];
+    this.subjectDocs = new int[postings.size()];
+    for (int k=0;k<postings.size();++k)
+    {
+      Posting p = postings.get(k);
+      this.subjectKeys[k] = p.key;
+      this.subjectDocs[k] = p.from;
+    }
+
+    // Woerter aus den Projekt-Namen
+    Collections.sort(b.projects);
+    this.projectKeys = new String[b.projects.size()];
+    this.projectFrom = new int[b.projects.size()];
+    this.projectTo   = new int[b.projects.size()];
+    for (int k=0;k<b.projects.size();++k)
+    {
+      Posting p = b.projects.get(k);
+      this.projectKeys[k] = p.key;
+      this.projectFrom[k] = p.from;
+      this.projectTo[k]   = p.to;
+    }
+  }
+
+  /**
+   * Liefert alle Issues des Index in der Reihenfolge des Projekt-Baumes.
+   * @return alle Issues.
+   */
+  List<CompactIssue> getIssues()
+  {
+    return this.list;
+  }
+
+  /**
+   * Liefert das Issue mit der angegebenen ID.
+   * @param id die ID.
+   * @return das Issue oder NULL, wenn es nicht enthalten ist.
+   */
+  CompactIssue get(Integer id)
+  {
+    return this.ids.get(id);
+  }
+
+  /**
+   * Sucht nach Issues.
+   * @param query der Suchbegriff. Entweder "#" gefolgt von der ID oder beliebige Wort-Anfaenge,
+   * die alle im Titel oder im Projekt-Namen vorkommen muessen.
+   * @param limit maximale Anzahl der Treffer.
+   * @return die Treffer, die besten zuerst. Ist das seltenste Wort kuerzer als
+   * {@value #SHORT_PREFIX} Zeichen, werden nur die neuesten {@value #SHORT_SCAN} Kandidaten beruecksichtigt.
+   */
+  List<CompactIssue> search(String query, int limit)
+  {
+    List<CompactIssue> result = new ArrayList<CompactIssue>();
+    if (query == null || limit <= 0)
+      return result;
+
+    String q = query.trim();
+    if (q.length() == 0)
+      return result;
+
+    // Direkte Suche nach der ID. Ohne "#" kommt das Issue mit der ID zuerst, die
+    // Zahl kann aber auch im Titel vorkommen.
+    boolean hash = q.startsWith("#");
+    String digits = hash ? q.substring(1).trim() : q;
+    if (digits.length() > 0 && digits.length() < 10 && isDigits(digits))
+    {
+      CompactIssue i = this.ids.get(Integer.valueOf(digits));
+      if (i != null)
+        result.add(i);
+      if (hash)
+        return result;
+    }
+
+    String[] tokens = tokenize(q,null);
+    if (tokens.length == 0)
+      return result;
+
+    // Wir beginnen mit dem Wort mit den wenigsten Treffern und pruefen
+    // die anderen Woerter dann nur noch fuer diese Kandidaten.
+    String first = null;
+    int min = Integer.MAX_VALUE;
+    for (String t:tokens)
+    {
+      int count = this.count(t);
+      if (count < min)
+      {
+        min = count;
+        first = t;
+      }
+    }
+    if (min == 0)
+      return result;
+
+    BitSet candidates = new BitSet(this.issues.length);
+    int from = lowerBound(this.subjectKeys,first);
+    int to   = upperBound(this.subjectKeys,first);
+    for (int k=from;k<to;++k)
+    {
+      candidates.set(this.subjectDocs[k]);
+    }
+    from = lowerBound(this.projectKeys,first);
+    to   = upperBound(this.projectKeys,first);
+    for (int k=from;k<to;++k)
+    {
+      candidates.set(this.projectFrom[k],this.projectTo[k]);
+    }
+
+    // Bewerten und die besten behalten. Der schlechteste Treffer steht vorn in der Queue.
+    PriorityQueue<Hit> hits = new PriorityQueue<Hit>(limit + 1);
+    int budget = Math.max(limit,SHORT_SCAN);
+    if (first.length() < SHORT_PREFIX && candidates.cardinality() > budget)
+    {
+      // Zu viele Kandidaten. Nur die neuesten bewerten
+      for (int k=0;k<this.newest.length && budget > 0;++k)
+      {
+        int doc = this.newest[k];
+        if (!candidates.get(doc))
+          continue;
+        budget--;
+        this.collect(hits,doc,tokens,limit);
+      }
+    }
+    else
+    {
+      for (int doc=candidates.nextSetBit(0);doc >= 0;doc=candidates.nextSetBit(doc + 1))
+      {
+        this.collect(hits,doc,tokens,limit);
+      }
+    }
+
+    List<Hit> sorted = new ArrayList<Hit>(hits);
+    Collections.sort(sorted,Collections.reverseOrder());
+    for (Hit h:sorted)
+    {
+      CompactIssue i = this.issues[h.doc];
+      if (result.size() > 0 && result.get(0) == i)
+        continue; // Schon als ID-Treffer drin
+      result.add(i);
+    }
+    return result.size() > limit ? result.subList(0,limit) : result;
+  }
+
+  /**
+   * Bewertet das Issue und uebernimmt es, wenn es zu den besten Treffern gehoert.
+   * @param hits die bisher besten Treffer, der schlechteste vorn.
+   * @param doc das Issue.
+   * @param tokens die gesuchten Woerter.
+   * @param limit maximale Anzahl der Treffer.
+   */
+  private void collect(PriorityQueue<Hit> hits, int doc, String[] tokens, int limit)
+  {
+    int score = this.score(doc,tokens);
+    if (score == 0)
+      return;
+
+    // Ist die Liste schon voll, muss der Treffer besser als der schlechteste sein
+    if (hits.size() == limit && !hits.peek().isWorse(doc,score))
+      return;
+
+    hits.add(new Hit(doc,score));
+    if (hits.size() > limit)
+      hits.poll();
+  }
+
+  /**
+   * Ermittelt die ungefaehre Anzahl der Issues, in denen das Wort vorkommt.
+   * @param token das Wort.
+   * @return die Anzahl.
+   */
+  private int count(String token)
+  {
+    int count = upperBound(this.subjectKeys,token) - lowerBound(this.subjectKeys,token);
+    int to = upperBound(this.projectKeys,token);
+    for (int k=lowerBound(this.projectKeys,token);k<to;++k)
+    {
+      count += this.projectTo[k] - this.projectFrom[k];
+    }
+    return count;
+  }
+
+  /**
+   * Bewertet das Issue.
+   * @param doc das Issue.
+   * @param tokens die gesuchten Woerter.
+   * @return die Bewertung oder 0, wenn nicht alle Woerter gefunden wurden.
+   */
+  private int score(int doc, String[] tokens)
+  {
+    int score = 0;
+    for (String t:tokens)
+    {
+      int s = 0;
+      for (String w:this.subjects[doc])
+      {
+        if (w.equals(t))
+        {
+          s = SCORE_SUBJECT_EXACT;
+          break;
+        }
+        if (w.startsWith(t))
+          s = SCORE_SUBJECT_PREFIX;
+      }
+
+      if (s == 0)
+      {
+        for (String w:this.paths[doc])
+        {
+          if (w.startsWith(t))
+          {
+            s = SCORE_PROJECT;
+            break;
+          }
+        }
+      }
+
+      if (s == 0)
+        return 0;
+      score += s;
+    }
+    return score;
+  }
+
+  /**
+   * Liefert die Position des ersten Wortes, das nicht kleiner als der Prefix ist.
+   * @param keys die sortierten Woerter.
+   * @param prefix der Prefix.
+   * @return die Position.
+   */
+  private static int lowerBound(String[] keys, String prefix)
+  {
+    int pos = Arrays.binarySearch(keys,prefix);
+    if (pos < 0)
+      return -pos - 1;
+
+    // Bei mehrfach vorhandenen Woertern zum ersten zurueckgehen
+    while (pos > 0 && keys[pos - 1].equals(prefix))
+      pos--;
+    return pos;
+  }
+
+  /**
+   * Liefert die Position hinter dem letzten Wort, das mit dem Prefix beginnt.
+   * @param keys die sortierten Woerter.
+   * @param prefix der Prefix.
+   * @return die Position.
+   */
+  private static int upperBound(String[] keys, String prefix)
+  {
+    return lowerBound(keys,prefix + Character.MAX_VALUE);
+  }
+
+  /**
+   * Prueft, ob der Text nur aus Ziffern besteht.
+   * @param s der Text.
+   * @return true, wenn der Text nur aus Ziffern besteht.
+   */
+  private static boolean isDigits(String s)
+  {
+    for (int k=0;k<s.length();++k)
+    {
+      if (!Character.isDigit(s.charAt(k)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Zerlegt den Text in einzelne Woerter in Kleinschreibung. Doppelte Woerter werden entfernt.
+   * @param s der Text. Kann NULL sein.
+   * @param pool optionaler Pool, damit gleiche Woerter nur einmal im Speicher liegen.
+   * @return die Woerter.
+   */
+  private static String[] tokenize(String s, StringPool pool)
+  {
+    if (s == null)
+      return new String[0];
+
+    Set<String> tokens = new LinkedHashSet<String>();
+    String text = s.toLowerCase();
+    int start = -1;
+    for (int k=0;k<=text.length();++k)
+    {
+      boolean letter = k < text.length() && Character.isLetterOrDigit(text.charAt(k));
+      if (letter && start == -1)
+      {
+        start = k;
+      }
+      else if (!letter && start != -1)
+      {
+        String t = text.substring(start,k);
+        tokens.add(pool != null ? pool.get(t) : t);
+        start = -1;
+      }
+    }
+    return tokens.toArray(new String[tokens.size()]);
+  }
+
+  /**
+   * Sammelt beim Aufbau des Index die Issues in der Reihenfolge des Projekt-Baumes ein.
+   */
+  private static class Builder
+  {
+    private final Map<Integer,List<CompactIssue>> views;
+    private final StringPool pool = new StringPool();
+
+    private final List<CompactIssue> issues = new ArrayList<CompactIssue>();
+    private final List<String[]> subjects = new ArrayList<String[]>();
+    private final List<String[]> paths = new ArrayList<String[]>();
+    private final List<Posting> projects = new ArrayList<Posting>();
+
+    /**
+     * ct.
+     * @param views die anzuzeigenden Issues pro Projekt.
+     */
+    private Builder(Map<Integer,List<CompactIssue>> views)
+    {
+      this.views = views;
+    }
+
+    /**
+     * Uebernimmt rekursiv die Issues der Projekte.
+     * @param projects die Projekte.
+     * @param parent die Woerter aus den Namen der Eltern-Projekte.
+     */
+    private void add(List<ProjectTree> projects, String[] parent)
+    {
+      for (ProjectTree p:projects)
+      {
+        Set<String> words = new LinkedHashSet<String>(Arrays.asList(parent));
+        words.addAll(Arrays.asList(tokenize(p.getProject().getName(),this.pool)));
+        String[] path = words.toArray(new String[words.size()]);
+
+        List<CompactIssue> list = this.views.get(p.getProject().getId());
+        if (list != null && list.size() > 0)
+        {
+          int from = this.issues.size();
+          for (CompactIssue i:list)
+          {
+            this.issues.add(i);
+            this.subjects.add(tokenize(i.getSubject(),this.pool));
+            this.paths.add(path); // Alle Issues des Projektes teilen sich das Array
+          }
+          int to = this.issues.size();
+          for (String w:path)
+          {
+            this.projects.add(new Posting(w,from,to));
+          }
+        }
+
+        this.add(p.getChildren(),path);
+      }
+    }
+  }
+
+  /**
+   * Ein Wort und der Bereich der Issues, in denen es vorkommt.
+   */
+  private static class Posting implements Comparable<Posting>
+  {
+    private final String key;
+    private final int from;
+    private final int to;
+
+    /**
+     * ct.
+     * @param key das Wort.
+     * @param from erstes Issue.
+     * @param to Ende des Bereiches (exklusiv).
+     */
+    private Posting(String key, int from, int to)
+    {
+      this.key  = key;
+      this.from = from;
+      this.to   = to;
+    }
+
+    /**
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    public int compareTo(Posting o)
+    {
+      return this.key.compareTo(o.key);
+    }
+  }
+
+  /**
+   * Ein bewerteter Treffer.
+   */
+  private class Hit implements Comparable<Hit>
+  {
+    private final int doc;
+    private final int score;
+
+    /**
+     * ct.
+     * @param doc das Issue.
+     * @param score die Bewertung.
+     */
+    private Hit(int doc, int score)
+    {
+      this.doc   = doc;
+      this.score = score;
+    }
+
+    /**
+     * Bei gleicher Bewertung kommen die neueren Issues zuerst.
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    public int compareTo(Hit o)
+    {
+      if (this.score != o.score)
+        return this.score < o.score ? -1 : 1;
+
+      int id1 = numbers[this.doc];
+      int id2 = numbers[o.doc];
+      return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+    }
+
+    /**
+     * Prueft, ob dieser Treffer schlechter als der angegebene ist.
+     * @param doc das andere Issue.
+     * @param score die Bewertung des anderen Issues.
+     * @return true, wenn dieser Treffer schlechter ist.
+     */
+    private boolean isWorse(int doc, int score)
+    {
+      if (this.score != score)
+        return this.score < score;
+      return numbers[this.doc] < numbers[doc];
+    }
+  }
+}
+
+
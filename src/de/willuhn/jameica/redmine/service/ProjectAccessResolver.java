@@ -0,0 +1,159 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.taskadapter.redmineapi.NotAuthorizedException;
+import com.taskadapter.redmineapi.NotFoundException;
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.RedmineManager;
+import com.taskadapter.redmineapi.bean.Membership;
+import com.taskadapter.redmineapi.bean.Project;
+import com.taskadapter.redmineapi.bean.User;
+
+import de.willuhn.logging.Level;
+import de.willuhn.logging.Logger;
+
+/**
+ * Ermittelt die Projekte, in denen der User Mitglied ist.
+ * Statt die Mitglieder jedes Projektes einzeln abzurufen, werden die Mitgliedschaften
+ * des Users mit einem einzelnen Request ermittelt. Nur wenn der Server das nicht
+ * unterstuetzt, wird auf den Abruf pro Projekt zurueckgegriffen.
+ */
+class ProjectAccessResolver
+{
+  private boolean bulkSupported = true;
+  private boolean emptyVerified = false;
+
+  /**
+   * Filtert die Liste der Projekte auf die, in denen der User Mitglied ist.
+   * @param manager der Redmine-Manager.
+   * @param user der User.
+   * @param projects die Liste aller sichtbaren Projekte.
+   * @return die gefilterte Liste.
+   * @throws RedmineException
+   */
+  List<Project> resolve(RedmineManager manager, User user, List<Project> projects) throws RedmineException
+  {
+    Set<Integer> ids = this.bulkSupported ? this.getMemberProjects(manager,user) : null;
+    if (ids == null)
+    {
+      boolean verify = this.bulkSupported;
+      List<Project> scanned = this.scan(manager,user,projects);
+
+      // Der Server hat eine leere Liste geliefert. Das pruefen wir nur beim ersten Mal
+      // pro Projekt nach. Findet die Pruefung Projekte, liefert der Server die Mitgliedschaften
+      // nicht mit und wir bleiben beim Abruf pro Projekt. Sonst war die leere Liste korrekt.
+      if (verify)
+      {
+        if (scanned.size() > 0)
+          this.bulkSupported = false;
+        else
+          this.emptyVerified = true;
+      }
+      return scanned;
+    }
+
+    List<Project> filtered = new ArrayList<Project>();
+    for (Project p:projects)
+    {
+      if (ids.contains(p.getId()))
+        filtered.add(p);
+    }
+    return filtered;
+  }
+
+  /**
+   * Liefert die IDs der Projekte, in denen der User Mitglied ist, mit einem einzelnen Request.
+   * @param manager der Redmine-Manager.
+   * @param user der User.
+   * @return die IDs der Projekte oder NULL, wenn der Server die Mitgliedschaften nicht liefert.
+   * @throws RedmineException
+   */
+  private Set<Integer> getMemberProjects(RedmineManager manager, User user) throws RedmineException
+  {
+    try
+    {
+      Logger.info("fetching memberships of user " + user.getId());
+
+      // Liefert den User inclusive seiner Mitgliedschaften. Die ueber Gruppen vererbten sind da mit drin.
+      User u = manager.getUserManager().getUserById(user.getId());
+      Collection<Membership> memberships = u.getMemberships();
+      if (memberships == null || memberships.size() == 0)
+      {
+        // Wurde schon einmal bestaetigt, dass eine leere Liste stimmt, ist das die Antwort
+        if (this.emptyVerified)
+        {
+          Logger.info("user is not member of any project");
+          return new HashSet<Integer>();
+        }
+
+        // Entweder ist der User tatsaechlich nirgends Mitglied oder der Server liefert die
+        // Mitgliedschaften nicht mit. Das pruefen wir einmalig pro Projekt.
+        Logger.info("no memberships returned for user, verifying with per-project scan");
+        return null;
+      }
+
+      Set<Integer> ids = new HashSet<Integer>();
+      for (Membership m:memberships)
+      {
+        Project p = m.getProject();
+        if (p != null)
+          ids.add(p.getId());
+      }
+      return ids;
+    }
+    catch (NotAuthorizedException e)
+    {
+      Logger.write(Level.DEBUG,"not allowed to read memberships of user, falling back to per-project scan",e);
+    }
+    catch (NotFoundException e)
+    {
+      Logger.write(Level.DEBUG,"server does not support memberships of user, falling back to per-project scan",e);
+    }
+
+    // Beim naechsten Mal versuchen wir es gar nicht erst wieder
+    this.bulkSupported = false;
+    return null;
+  }
+
+  /**
+   * Prueft fuer jedes Projekt einzeln, ob der User Mitglied ist.
+   * @param manager der Redmine-Manager.
+   * @param user der User.
+   * @param projects die Liste aller sichtbaren Projekte.
+   * @return die gefilterte Liste.
+   * @throws RedmineException
+   */
+  private List<Project> scan(RedmineManager manager, User user, List<Project> projects) throws RedmineException
+  {
+    Logger.info("checking memberships of " + projects.size() + " projects");
+    List<Project> filtered = new ArrayList<Project>();
+    for (Project p:projects)
+    {
+      List<Membership> members = manager.getMembershipManager().getMemberships(p.getId());
+      for (Membership m:members)
+      {
+        Integer u = m.getUserId();
+        if (u == null || u.equals(user.getId()))
+        {
+          filtered.add(p);
+          break;
+        }
+      }
+    }
+    return filtered;
+  }
+}
+
+
@@ -0,0 +1,93 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.Random;
+
+/**
+ * Ermittelt den Abstand bis zum naechsten Reload des Caches.
+ * Aendert sich auf dem Server nichts, wird der Abstand schrittweise bis zum Maximum verlaengert,
+ * bei Aenderungen wieder verkuerzt. Nach Fehlern wird der Abstand exponentiell vergroessert.
+ * Auf jeden Abstand wird ein zufaelliger Anteil aufgeschlagen bzw. abgezogen, damit nicht
+ * alle Clients eines Bueros im Gleichtakt beim Server anfragen.
+ */
+class ReloadSchedule
+{
+  /**
+   * Maximale zufaellige Abweichung vom berechneten Abstand (+/- 20%).
+   */
+  private final static double JITTER = 0.2d;
+
+  /**
+   * Faktor, um den der Abstand verlaengert wird, wenn sich nichts geaendert hat.
+   */
+  private final static double GROWTH = 1.5d;
+
+  private final Random random = new Random();
+
+  private long interval = 0L;
+  private int failures = 0;
+
+  /**
+   * Setzt den Abstand wieder auf das Minimum zurueck.
+   */
+  synchronized void reset()
+  {
+    this.interval = 0L;
+    this.failures = 0;
+  }
+
+  /**
+   * Ermittelt den Abstand nach einem erfolgreichen Reload.
+   * @param changes die Anzahl der dabei gefundenen Aenderungen.
+   * @param min der minimale Abstand in Millisekunden.
+   * @param max der maximale Abstand in Millisekunden.
+   * @return der Abstand bis zum naechsten Reload in Millisekunden.
+   */
+  synchronized long success(int changes, long min, long max)
+  {
+    this.failures = 0;
+
+    if (this.interval == 0L)
+      this.interval = min;
+    else if (changes > 0)
+      this.interval = this.interval / 2; // Es tut sich was. Wieder oefter nachsehen
+    else
+      this.interval = (long) (this.interval * GROWTH);
+
+    this.interval = Math.max(min,Math.min(max,this.interval));
+    return this.jitter(this.interval);
+  }
+
+  /**
+   * Ermittelt den Abstand nach einem fehlgeschlagenen Reload.
+   * @param min der minimale Abstand in Millisekunden.
+   * @param max der maximale Abstand in Millisekunden.
+   * @return der Abstand bis zum naechsten Reload in Millisekunden.
+   */
+  synchronized long failure(long min, long max)
+  {
+    // Begrenzt, damit die Verschiebung nicht ueberlaeuft
+    this.failures = Math.min(this.failures + 1,20);
+    long delay = Math.max(min,Math.min(max,min << (this.failures - 1)));
+    return this.jitter(delay);
+  }
+
+  /**
+   * Schlaegt einen zufaelligen Anteil auf den Abstand auf bzw. zieht ihn ab.
+   * @param delay der Abstand.
+   * @return der Abstand mit zufaelliger Abweichung.
+   */
+  private long jitter(long delay)
+  {
+    double factor = 1.0d + JITTER * (2.0d * this.random.nextDouble() - 1.0d);
+    return (long) (delay * factor);
+  }
+}
+
+
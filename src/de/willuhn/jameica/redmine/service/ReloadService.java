@@ -8,8 +8,12 @@
 package de.willuhn.jameica.redmine.service;
 
 import java.rmi.RemoteException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
@@ -19,6 +23,9 @@ import de.willuhn.logging.Logger;
 
 /**
  * Service, der den Cache regelmaessig neu laedt.
+ * Der Abstand zwischen zwei Reloads passt sich an: Aendert sich auf dem Server nichts,
+ * wird er bis zum eingestellten Maximum verlaengert, nach Fehlern exponentiell vergroessert.
+ * @see ReloadSchedule
  */
 public class ReloadService implements Service
 {
@@ -28,30 +35,77 @@ public class ReloadService implements Service
   @Resource
   private Settings settings;
   
-  private Timer timer = null;
+  @Resource(name="commit-service")
+  private CommitService commits;
+  
+  private final ReloadSchedule schedule = new ReloadSchedule();
+  
+  private ScheduledExecutorService executor = null;
+  private ScheduledFuture<?> future = null;
   private Task task = null;
+  private volatile long next = 0L;
   
   /**
    * Startet den Scheduler mit ggf geaenderten Intervall neu.
+   * Ein gerade laufender Reload wird abgebrochen, da er noch mit den alten Einstellungen
+   * arbeitet. Der naechste startet erst, wenn er beendet ist. Mehrere Aufrufe waehrend
+   * eines laufenden Reload fuehren zu genau einem weiteren.
    * @throws RemoteException
    */
-  public void reschedule() throws RemoteException
+  public synchronized void reschedule() throws RemoteException
   {
     if (!this.isStarted())
     {
       Logger.warn("reload-service not started, skipping re-schedule");
+      return;
     }
     
-    if (this.task != null)
+    if (this.future != null)
     {
       Logger.info("cancel current task");
-      this.task.cancel();
+      this.future.cancel(false);
     }
+    this.service.cancelReload();
     
-    int minutes = this.settings.getCacheReloadInterval();
-    Logger.info("reloading cache every " + minutes + " minutes");
+    // Die Einstellungen haben sich ggf. geaendert. Daher beim naechsten Mal alles neu laden
+    this.service.invalidate();
+    this.startTask();
+  }
+  
+  /**
+   * Plant den ersten Reload eines neuen Tasks ein.
+   */
+  private synchronized void startTask()
+  {
+    this.schedule.reset();
+    Logger.info("reloading cache every " + this.settings.getCacheReloadInterval() + " to " + this.settings.getCacheReloadMaxInterval() + " minutes");
     this.task = new Task();
-    this.timer.schedule(this.task,100L,minutes * 60 * 1000L);
+    this.schedule(this.task,100L);
+  }
+  
+  /**
+   * Liefert den Zeitpunkt des naechsten geplanten Reload.
+   * @return der Zeitpunkt des naechsten Reload oder NULL, wenn keiner geplant ist.
+   */
+  public Date getNextReload()
+  {
+    long n = this.next;
+    return n > 0L ? new Date(n) : null;
+  }
+  
+  /**
+   * Plant den naechsten Reload ein.
+   * @param task der Task.
+   * @param delay die Wartezeit in Millisekunden.
+   */
+  private synchronized void schedule(Task task, long delay)
+  {
+    // Der Service wurde inzwischen beendet oder neu geplant
+    if (this.executor == null || task != this.task)
+      return;
+    
+    this.next = System.currentTimeMillis() + delay;
+    this.future = this.executor.schedule(task,delay,TimeUnit.MILLISECONDS);
   }
   
   /**
@@ -78,7 +132,7 @@ public class ReloadService implements Service
   @Override
   public boolean isStarted() throws RemoteException
   {
-    return this.timer != null;
+    return this.executor != null;
   }
 
   /**
@@ -87,26 +141,38 @@ public class ReloadService implements Service
   @Override
   public void start() throws RemoteException
   {
-    this.timer = new Timer(true);
-    this.reschedule();
+    // Erstmal den beim letzten Mal gespeicherten Cache laden, damit die Daten
+    // sofort da sind. Das Reload findet dann im Hintergrund statt
+    this.service.restore();
+    
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"redmine-reload");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    
+    // Ohne Invalidierung. War der gespeicherte Cache verwendbar, holt das
+    // erste Reload nur die Aenderungen seit dem letzten Lauf
+    this.startTask();
   }
   
   /**
    * @see de.willuhn.datasource.Service#stop(boolean)
    */
   @Override
-  public void stop(boolean arg0) throws RemoteException
+  public synchronized void stop(boolean arg0) throws RemoteException
   {
     try
     {
-      if (this.task != null)
-      {
-        this.task.cancel();
-      }
+      // Bricht auch die laufenden Requests ab, damit wir nicht auf den Server warten muessen
+      this.service.cancelReload();
       
-      if (this.timer != null)
+      if (this.executor != null)
       {
-        this.timer.cancel();
+        this.executor.shutdownNow();
       }
     }
     catch (Exception e)
@@ -115,27 +181,48 @@ public class ReloadService implements Service
     }
     finally
     {
+      this.executor = null;
+      this.future = null;
       this.task = null;
-      this.timer = null;
+      this.next = 0L;
     }
   }
   
   /**
-   * Unser Timer-Task.
+   * Unser Task. Er plant nach jedem Lauf den naechsten selbst ein.
    */
-  private class Task extends TimerTask
+  private class Task implements Runnable
   {
     /**
-     * @see java.util.TimerTask#run()
+     * @see java.lang.Runnable#run()
      */
     @Override
     public void run()
     {
-      service.reconnect();
+      long min = settings.getCacheReloadInterval() * 60 * 1000L;
+      long max = settings.getCacheReloadMaxInterval() * 60 * 1000L;
+      long delay = min;
+      
+      try
+      {
+        int changes = service.reload();
+        delay = changes < 0 ? schedule.failure(min,max) : schedule.success(changes,min,max);
+        
+        // Ist der Server wieder erreichbar, muessen die offline erfassten Zeiten
+        // nicht erst bis zum naechsten Versuch warten
+        if (!service.isOffline() && commits.getPending() > 0)
+          commits.resume();
+      }
+      catch (Exception e)
+      {
+        Logger.error("error while reloading cache",e);
+        delay = schedule.failure(min,max);
+      }
+      
+      Logger.info("next cache reload in " + (delay / 1000L) + " seconds");
+      schedule(this,delay);
     }
   }
-  
-
 }
 
 
@@ -0,0 +1,107 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Sorgt dafuer, dass eine Aktion nie mehrfach gleichzeitig laeuft.
+ * Wird die Aktion angefordert, waehrend sie bereits laeuft, wird sie danach genau
+ * einmal erneut ausgefuehrt, egal wie viele Anforderungen in der Zwischenzeit kamen.
+ * Alle diese Aufrufer erhalten das Ergebnis dieses einen Folge-Laufs. Der Folge-Lauf
+ * ist noetig, weil sich zwischenzeitlich etwas geaendert haben kann, was der laufende
+ * Durchgang noch nicht beruecksichtigt.
+ * Ausgefuehrt wird die Aktion von dem Thread, der sie als erster angefordert hat.
+ * @param <T> der Typ des Ergebnisses.
+ */
+class SingleFlight<T>
+{
+  private final Callable<T> action;
+
+  private FutureTask<T> current = null;
+  private FutureTask<T> next = null;
+
+  /**
+   * ct.
+   * @param action die Aktion.
+   */
+  SingleFlight(Callable<T> action)
+  {
+    this.action = action;
+  }
+
+  /**
+   * Fuehrt die Aktion aus bzw. schliesst sich dem naechsten Lauf an und wartet auf das Ergebnis.
+   * @return das Ergebnis.
+   * @throws ExecutionException wenn die Aktion fehlgeschlagen ist.
+   * @throws InterruptedException wenn das Warten unterbrochen wurde.
+   */
+  T run() throws ExecutionException, InterruptedException
+  {
+    FutureTask<T> task = null;
+    boolean owner = false;
+    synchronized (this)
+    {
+      if (this.current == null)
+      {
+        this.current = new FutureTask<T>(this.action);
+        task = this.current;
+        owner = true;
+      }
+      else
+      {
+        if (this.next == null)
+          this.next = new FutureTask<T>(this.action);
+        task = this.next;
+      }
+    }
+
+    if (owner)
+      this.drive(task);
+
+    return task.get();
+  }
+
+  /**
+   * Liefert den gerade laufenden Durchgang, damit der Aufrufer auf ihn warten kann.
+   * @return der laufende Durchgang oder NULL, wenn gerade keiner laeuft.
+   */
+  synchronized Future<T> getCurrent()
+  {
+    return this.current;
+  }
+
+  /**
+   * Fuehrt den Durchgang und anschliessend alle inzwischen angeforderten Folge-Laeufe aus.
+   * @param task der erste Durchgang.
+   */
+  private void drive(FutureTask<T> task)
+  {
+    while (task != null)
+    {
+      try
+      {
+        task.run();
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          this.current = this.next;
+          this.next = null;
+          task = this.current;
+        }
+      }
+    }
+  }
+}
+
+
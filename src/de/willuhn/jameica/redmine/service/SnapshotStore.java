@@ -0,0 +1,344 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.taskadapter.redmineapi.bean.Project;
+import com.taskadapter.redmineapi.bean.ProjectFactory;
+import com.taskadapter.redmineapi.bean.TimeEntryActivity;
+import com.taskadapter.redmineapi.bean.TimeEntryActivityFactory;
+
+import de.willuhn.jameica.redmine.beans.CompactIssue;
+import de.willuhn.jameica.redmine.beans.ProjectTree;
+import de.willuhn.logging.Logger;
+
+/**
+ * Speichert den Inhalt des Caches in einer Datei im Arbeitsverzeichnis des Plugins,
+ * damit er nach dem Start sofort wieder zur Verfuegung steht.
+ * Die Datei enthaelt nur die Attribute, die der Cache tatsaechlich benoetigt.
+ */
+class SnapshotStore
+{
+  /**
+   * Version des Datei-Formats. Muss bei jeder Aenderung des Formats erhoeht werden.
+   */
+  private final static int VERSION = 3;
+
+  private final static int MAGIC = 0x52444d43; // "RDMC"
+
+  private File file = null;
+
+  /**
+   * ct.
+   * @param file die Datei, in der der Cache gespeichert wird.
+   */
+  SnapshotStore(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Der Inhalt des gespeicherten Caches.
+   */
+  static class Content
+  {
+    List<ProjectTree> projects = new ArrayList<ProjectTree>();
+    List<TimeEntryActivity> activities = new ArrayList<TimeEntryActivity>();
+    Map<Integer,List<CompactIssue>> issues = new HashMap<Integer,List<CompactIssue>>();
+    Date watermark = null;
+    Integer user = null;
+
+    // Zeitpunkte, zu denen die Bereiche zuletzt vom Server geladen wurden. 0, wenn unbekannt
+    long userLoaded = 0L;
+    long projectsLoaded = 0L;
+    long activitiesLoaded = 0L;
+    long fullReload = 0L;
+  }
+
+  /**
+   * Speichert den Cache. Die Datei wird erst unter einem temporaeren Namen geschrieben und
+   * anschliessend umbenannt, damit nie eine halb geschriebene Datei existiert.
+   * @param identity Kennung von Server und User, zu dem die Daten gehoeren.
+   * @param content der zu speichernde Inhalt.
+   * @throws IOException
+   */
+  void write(String identity, Content content) throws IOException
+  {
+    File tmp = new File(this.file.getParentFile(),this.file.getName() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    GZIPOutputStream gz = new GZIPOutputStream(fos);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gz));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(identity);
+      out.writeLong(content.watermark != null ? content.watermark.getTime() : -1L);
+      this.writeInt(out,content.user);
+      out.writeLong(content.userLoaded);
+      out.writeLong(content.projectsLoaded);
+      out.writeLong(content.activitiesLoaded);
+      out.writeLong(content.fullReload);
+
+      // 1. Projekte
+      out.writeInt(content.projects.size());
+      for (ProjectTree p:content.projects)
+      {
+        this.writeProject(out,p);
+      }
+
+      // 2. Activities
+      out.writeInt(content.activities.size());
+      for (TimeEntryActivity a:content.activities)
+      {
+        out.writeInt(a.getId());
+        this.writeString(out,a.getName());
+        out.writeBoolean(a.isDefault());
+      }
+
+      // 3. Issues
+      out.writeInt(content.issues.size());
+      for (Entry<Integer,List<CompactIssue>> e:content.issues.entrySet())
+      {
+        List<CompactIssue> list = e.getValue();
+        out.writeInt(e.getKey());
+        out.writeInt(list.size());
+        for (CompactIssue i:list)
+        {
+          out.writeInt(i.getId());
+          this.writeInt(out,i.getProjectId());
+          this.writeInt(out,i.getAssigneeId());
+          this.writeString(out,i.getSubject());
+          Date d = i.getUpdatedOn();
+          out.writeLong(d != null ? d.getTime() : -1L);
+        }
+      }
+
+      // Erst alles inclusive GZIP-Trailer auf die Platte bringen, dann umbenennen.
+      // Sonst kann nach einem Absturz eine leere Datei unter dem richtigen Namen liegen.
+      out.flush();
+      gz.finish();
+      fos.getFD().sync();
+    }
+    finally
+    {
+      out.close();
+    }
+
+    Files.move(tmp.toPath(),this.file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Liest den gespeicherten Cache.
+   * @param identity Kennung von Server und User, zu dem die Daten gehoeren muessen.
+   * @return der gespeicherte Inhalt oder NULL, wenn keiner existiert oder er nicht verwendbar ist.
+   * @throws IOException
+   */
+  Content read(String identity) throws IOException
+  {
+    if (!this.file.isFile())
+      return null;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(this.file))));
+    try
+    {
+      if (in.readInt() != MAGIC)
+      {
+        Logger.warn("cache snapshot " + this.file + " has invalid format, discarding");
+        return null;
+      }
+
+      int version = in.readInt();
+      if (version != VERSION)
+      {
+        Logger.info("cache snapshot has version " + version + ", expected " + VERSION + ", discarding");
+        return null;
+      }
+
+      if (!identity.equals(in.readUTF()))
+      {
+        Logger.info("cache snapshot belongs to another server or user, discarding");
+        return null;
+      }
+
+      Content content = new Content();
+      long mark = in.readLong();
+      content.watermark = mark != -1L ? new Date(mark) : null;
+      content.user = this.readInt(in);
+      content.userLoaded       = in.readLong();
+      content.projectsLoaded   = in.readLong();
+      content.activitiesLoaded = in.readLong();
+      content.fullReload       = in.readLong();
+
+      // 1. Projekte
+      int count = in.readInt();
+      for (int i=0;i<count;++i)
+      {
+        content.projects.add(this.readProject(in));
+      }
+
+      // 2. Activities
+      count = in.readInt();
+      for (int i=0;i<count;++i)
+      {
+        TimeEntryActivity a = TimeEntryActivityFactory.create(in.readInt());
+        a.setName(this.readString(in));
+        a.setDefault(in.readBoolean());
+        content.activities.add(a);
+      }
+
+      // 3. Issues
+      StringPool pool = new StringPool();
+      count = in.readInt();
+      for (int i=0;i<count;++i)
+      {
+        Integer project = in.readInt();
+        int size = in.readInt();
+        List<CompactIssue> list = new ArrayList<CompactIssue>(size);
+        for (int k=0;k<size;++k)
+        {
+          int id = in.readInt();
+          Integer projectId = this.readInt(in);
+          Integer assigneeId = this.readInt(in);
+          String subject = pool.get(this.readString(in));
+          long d = in.readLong();
+          list.add(new CompactIssue(id,projectId,assigneeId,subject,d != -1L ? new Date(d) : null));
+        }
+        content.issues.put(project,list);
+      }
+      return content;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Loescht den gespeicherten Cache.
+   */
+  void delete()
+  {
+    if (this.file.exists() && !this.file.delete())
+      Logger.warn("unable to delete cache snapshot " + this.file);
+  }
+
+  /**
+   * Schreibt rekursiv ein Projekt samt Kind-Projekten.
+   * @param out der Stream.
+   * @param p das Projekt.
+   * @throws IOException
+   */
+  private void writeProject(DataOutputStream out, ProjectTree p) throws IOException
+  {
+    Project project = p.getProject();
+    out.writeInt(project.getId());
+    this.writeInt(out,project.getParentId());
+    this.writeString(out,project.getIdentifier());
+    this.writeString(out,project.getName());
+
+    List<ProjectTree> children = p.getChildren();
+    out.writeInt(children.size());
+    for (ProjectTree c:children)
+    {
+      this.writeProject(out,c);
+    }
+  }
+
+  /**
+   * Liest rekursiv ein Projekt samt Kind-Projekten.
+   * @param in der Stream.
+   * @return das Projekt.
+   * @throws IOException
+   */
+  private ProjectTree readProject(DataInputStream in) throws IOException
+  {
+    Project project = ProjectFactory.create(in.readInt());
+    project.setParentId(this.readInt(in));
+    project.setIdentifier(this.readString(in));
+    project.setName(this.readString(in));
+
+    ProjectTree p = new ProjectTree();
+    p.setProject(project);
+
+    int count = in.readInt();
+    for (int i=0;i<count;++i)
+    {
+      p.getChildren().add(this.readProject(in));
+    }
+    return p;
+  }
+
+  /**
+   * Schreibt einen optionalen Integer.
+   * @param out der Stream.
+   * @param i der Wert. Kann NULL sein.
+   * @throws IOException
+   */
+  private void writeInt(DataOutputStream out, Integer i) throws IOException
+  {
+    out.writeBoolean(i != null);
+    if (i != null)
+      out.writeInt(i.intValue());
+  }
+
+  /**
+   * Liest einen optionalen Integer.
+   * @param in der Stream.
+   * @return der Wert. Kann NULL sein.
+   * @throws IOException
+   */
+  private Integer readInt(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+  }
+
+  /**
+   * Schreibt einen optionalen String.
+   * @param out der Stream.
+   * @param s der Wert. Kann NULL sein.
+   * @throws IOException
+   */
+  private void writeString(DataOutputStream out, String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+  /**
+   * Liest einen optionalen String.
+   * @param in der Stream.
+   * @return der Wert. Kann NULL sein.
+   * @throws IOException
+   */
+  private String readString(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
+
+
@@ -0,0 +1,41 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sorgt dafuer, dass gleiche Strings nur einmal im Speicher gehalten werden.
+ * Im Gegensatz zu String#intern() lebt der Pool nur so lange wie die Instanz.
+ * Nicht thread-safe.
+ */
+class StringPool
+{
+  private final Map<String,String> pool = new HashMap<String,String>();
+
+  /**
+   * Liefert die bereits vorhandene Instanz des Strings oder uebernimmt ihn in den Pool.
+   * @param s der String. Kann NULL sein.
+   * @return die Instanz aus dem Pool.
+   */
+  String get(String s)
+  {
+    if (s == null)
+      return null;
+
+    String existing = this.pool.get(s);
+    if (existing != null)
+      return existing;
+
+    this.pool.put(s,s);
+    return s;
+  }
+}
+
+
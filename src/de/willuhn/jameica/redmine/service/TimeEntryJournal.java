@@ -0,0 +1,264 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Date;
+
+import com.taskadapter.redmineapi.bean.TimeEntry;
+import com.taskadapter.redmineapi.bean.TimeEntryFactory;
+
+import de.willuhn.logging.Logger;
+
+/**
+ * Journal fuer die laufende Zeiterfassung.
+ * Jede Aenderung wird als Zeile an die Datei angehaengt und sofort auf die Platte
+ * geschrieben. Nach einem Absturz kann die laufende Zeiterfassung damit beim naechsten
+ * Start wiederhergestellt werden. Da beim Start einer neuen Zeiterfassung keine andere
+ * mehr laeuft, beginnt die Datei dann von vorn. Sie bleibt dadurch immer klein.
+ * Eine abgeschlossene Zeiterfassung gilt erst dann als erledigt, wenn sie im Postausgang
+ * gespeichert ist. Bis dahin wird sie nach einem Absturz samt Dauer wiederhergestellt.
+ */
+class TimeEntryJournal
+{
+  private final static String ENCODING = "UTF-8";
+
+  private final static String START   = "START";
+  private final static String EDIT    = "EDIT";
+  private final static String FINISH  = "FINISH";
+  private final static String COMMIT  = "COMMIT";
+  private final static String DISMISS = "DISMISS";
+
+  private File file = null;
+  private boolean torn = false;
+
+  /**
+   * ct.
+   * @param file die Datei des Journals.
+   */
+  TimeEntryJournal(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Vermerkt den Start einer Zeiterfassung.
+   * @param entry die Zeiterfassung.
+   * @throws IOException
+   */
+  void start(TimeEntry entry) throws IOException
+  {
+    this.write(false,START,entry.getIssueId(),entry.getProjectId(),entry.getUserId(),entry.getCreatedOn().getTime(),entry.getComment());
+  }
+
+  /**
+   * Vermerkt die Aenderung einer Zeiterfassung.
+   * @param entry die Zeiterfassung.
+   * @throws IOException
+   */
+  void edit(TimeEntry entry) throws IOException
+  {
+    this.write(true,EDIT,entry.getCreatedOn().getTime(),entry.getActivityId(),entry.getComment());
+  }
+
+  /**
+   * Vermerkt den Abschluss der Zeiterfassung samt der errechneten Dauer.
+   * @param entry die Zeiterfassung.
+   * @throws IOException
+   */
+  void finish(TimeEntry entry) throws IOException
+  {
+    this.write(true,FINISH,entry.getHours());
+  }
+
+  /**
+   * Vermerkt, dass die abgeschlossene Zeiterfassung im Postausgang gespeichert ist.
+   * @throws IOException
+   */
+  void commit() throws IOException
+  {
+    this.write(true,COMMIT);
+  }
+
+  /**
+   * Vermerkt das Verwerfen der Zeiterfassung.
+   * @throws IOException
+   */
+  void dismiss() throws IOException
+  {
+    this.write(true,DISMISS);
+  }
+
+  /**
+   * Spielt das Journal ab und liefert die beim letzten Mal laufende Zeiterfassung.
+   * War sie bereits abgeschlossen, aber noch nicht im Postausgang gespeichert, sind
+   * ihre Stunden bereits gesetzt.
+   * @return die laufende bzw. abgeschlossene Zeiterfassung oder NULL, wenn keine lief.
+   * @throws IOException
+   */
+  TimeEntry replay() throws IOException
+  {
+    if (!this.file.isFile())
+      return null;
+
+    TimeEntry entry = null;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file),ENCODING));
+    try
+    {
+      StringBuilder sb = new StringBuilder();
+      int c = 0;
+      while ((c = reader.read()) != -1)
+      {
+        if (c != '\n')
+        {
+          sb.append((char) c);
+          continue;
+        }
+
+        // Nur vollstaendig geschriebene Zeilen auswerten. Eine Zeile ohne Zeilenumbruch
+        // am Ende wurde beim Absturz nur halb geschrieben und wird ignoriert.
+        String line = sb.toString();
+        sb.setLength(0);
+        if (line.length() == 0)
+          continue;
+        try
+        {
+          entry = this.apply(entry,line.split("\t",-1));
+        }
+        catch (Exception e)
+        {
+          Logger.warn("invalid line in time entry journal, skipping: " + line);
+        }
+      }
+
+      // Die naechste Zeile darf nicht an die halb geschriebene angehaengt werden
+      this.torn = sb.length() > 0;
+    }
+    finally
+    {
+      reader.close();
+    }
+    return entry;
+  }
+
+  /**
+   * Wendet eine Zeile des Journals an.
+   * @param entry die bisherige Zeiterfassung. Kann NULL sein.
+   * @param fields die Felder der Zeile.
+   * @return die Zeiterfassung danach. Kann NULL sein.
+   * @throws Exception
+   */
+  private TimeEntry apply(TimeEntry entry, String[] fields) throws Exception
+  {
+    String type = fields[0];
+    if (START.equals(type))
+    {
+      Date created = new Date(Long.parseLong(fields[4]));
+      TimeEntry e = TimeEntryFactory.create();
+      e.setIssueId(this.toInt(fields[1]));
+      e.setProjectId(this.toInt(fields[2]));
+      e.setUserId(this.toInt(fields[3]));
+      e.setCreatedOn(created);
+      e.setSpentOn(created);
+      e.setComment(this.decode(fields[5]));
+      return e;
+    }
+
+    if (EDIT.equals(type))
+    {
+      if (entry != null)
+      {
+        Date created = new Date(Long.parseLong(fields[1]));
+        entry.setCreatedOn(created);
+        entry.setSpentOn(created);
+        entry.setActivityId(this.toInt(fields[2]));
+        entry.setComment(this.decode(fields[3]));
+      }
+      return entry;
+    }
+
+    if (FINISH.equals(type))
+    {
+      if (entry != null)
+        entry.setHours(Float.valueOf(fields[1]));
+      return entry;
+    }
+
+    if (COMMIT.equals(type) || DISMISS.equals(type))
+      return null;
+
+    throw new IOException("unknown record type " + type);
+  }
+
+  /**
+   * Haengt eine Zeile an das Journal an und schreibt sie sofort auf die Platte.
+   * @param append false, wenn die Datei von vorn beginnen soll.
+   * @param fields die Felder der Zeile.
+   * @throws IOException
+   */
+  private void write(boolean append, Object... fields) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    if (append && this.torn)
+      sb.append('\n');
+    for (int i=0;i<fields.length;++i)
+    {
+      if (i > 0)
+        sb.append('\t');
+      Object o = fields[i];
+      if (o instanceof String)
+        sb.append(URLEncoder.encode((String) o,ENCODING));
+      else if (o != null)
+        sb.append(o);
+    }
+    sb.append('\n');
+
+    FileOutputStream os = new FileOutputStream(this.file,append);
+    try
+    {
+      os.write(sb.toString().getBytes(ENCODING));
+      os.getFD().sync();
+      this.torn = false;
+    }
+    finally
+    {
+      os.close();
+    }
+  }
+
+  /**
+   * Wandelt den Text in einen Integer um.
+   * @param s der Text.
+   * @return der Integer oder NULL, wenn der Text leer ist.
+   */
+  private Integer toInt(String s)
+  {
+    return s.length() > 0 ? Integer.valueOf(s) : null;
+  }
+
+  /**
+   * Dekodiert einen Text.
+   * @param s der kodierte Text.
+   * @return der Text.
+   * @throws UnsupportedEncodingException
+   */
+  private String decode(String s) throws UnsupportedEncodingException
+  {
+    return URLDecoder.decode(s,ENCODING);
+  }
+}
+
+
@@ -0,0 +1,118 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.taskadapter.redmineapi.bean.TimeEntry;
+import com.taskadapter.redmineapi.bean.TimeEntryFactory;
+
+/**
+ * Fasst Zeiterfassungen mit gleichem Issue, gleicher Aktivitaet und gleichem Tag zusammen.
+ * Die Stunden werden addiert, die Kommentare aneinandergehaengt. Gleiche Kommentare
+ * werden dabei nur einmal uebernommen.
+ */
+class TimeEntryMerger
+{
+  /**
+   * Maximale Laenge des Kommentars, die Redmine akzeptiert.
+   */
+  private final static int MAX_COMMENT = 255;
+
+  private final static String SEPARATOR = "; ";
+
+  /**
+   * Fasst die Zeiterfassungen zusammen.
+   * Wuerde der Kommentar dabei zu lang, wird fuer den Rest eine weitere Zeiterfassung angelegt,
+   * damit kein Kommentar verloren geht.
+   * @param entries die Zeiterfassungen.
+   * @return die zusammengefassten Zeiterfassungen in der Reihenfolge ihres ersten Auftretens.
+   */
+  List<TimeEntry> merge(List<TimeEntry> entries)
+  {
+    DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+    List<TimeEntry> result = new ArrayList<TimeEntry>();
+    Map<String,TimeEntry> lookup = new HashMap<String,TimeEntry>();
+
+    for (TimeEntry e:entries)
+    {
+      String key = e.getIssueId() + "|" + e.getActivityId() + "|" + df.format(e.getSpentOn());
+      TimeEntry merged = lookup.get(key);
+      String comment = merged != null ? this.append(merged.getComment(),e.getComment()) : null;
+
+      if (merged == null || (comment != null && comment.length() > MAX_COMMENT && !comment.equals(merged.getComment())))
+      {
+        merged = this.copy(e);
+        lookup.put(key,merged);
+        result.add(merged);
+        continue;
+      }
+
+      merged.setComment(comment);
+      merged.setHours(this.getHours(merged) + this.getHours(e));
+    }
+    return result;
+  }
+
+  /**
+   * Haengt den Kommentar an, sofern er nicht schon enthalten ist.
+   * @param comments die bisherigen Kommentare.
+   * @param comment der neue Kommentar. Kann NULL sein.
+   * @return die Kommentare.
+   */
+  private String append(String comments, String comment)
+  {
+    if (comment == null || comment.length() == 0)
+      return comments;
+    if (comments == null || comments.length() == 0)
+      return comment;
+
+    for (String s:comments.split(SEPARATOR))
+    {
+      if (s.equals(comment))
+        return comments;
+    }
+    return comments + SEPARATOR + comment;
+  }
+
+  /**
+   * Liefert die Stunden der Zeiterfassung.
+   * @param e die Zeiterfassung.
+   * @return die Stunden. 0, wenn keine angegeben sind.
+   */
+  private float getHours(TimeEntry e)
+  {
+    return e.getHours() != null ? e.getHours().floatValue() : 0f;
+  }
+
+  /**
+   * Kopiert die Zeiterfassung, damit die urspruenglichen Zeiterfassungen unveraendert bleiben.
+   * @param e die Zeiterfassung.
+   * @return die Kopie.
+   */
+  private TimeEntry copy(TimeEntry e)
+  {
+    TimeEntry c = TimeEntryFactory.create();
+    c.setIssueId(e.getIssueId());
+    c.setProjectId(e.getProjectId());
+    c.setUserId(e.getUserId());
+    c.setActivityId(e.getActivityId());
+    c.setHours(e.getHours());
+    c.setSpentOn(e.getSpentOn());
+    c.setCreatedOn(e.getCreatedOn());
+    c.setComment(e.getComment());
+    return c;
+  }
+}
+
+
@@ -0,0 +1,160 @@
+/**********************************************************************
+ *
+ * Copyright (c) by Olaf Willuhn
+ * All rights reserved
+ *
+ **********************************************************************/
+
+package de.willuhn.jameica.redmine.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.taskadapter.redmineapi.bean.TimeEntry;
+import com.taskadapter.redmineapi.bean.TimeEntryFactory;
+
+import de.willuhn.logging.Logger;
+
+/**
+ * Speichert die noch nicht uebertragenen Zeiterfassungen in einer Datei im Arbeitsverzeichnis
+ * des Plugins, damit sie auch nach einem Neustart ohne Verbindung zum Server erhalten bleiben.
+ * Pro Zeiterfassung gibt es eine Zeile.
+ */
+class TimeEntryOutbox
+{
+  private final static String ENCODING = "UTF-8";
+
+  private File file = null;
+
+  /**
+   * ct.
+   * @param file die Datei, in der die Zeiterfassungen gespeichert werden.
+   */
+  TimeEntryOutbox(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Speichert die Zeiterfassungen. Die Datei wird erst unter einem temporaeren Namen geschrieben
+   * und anschliessend umbenannt, damit nie eine halb geschriebene Datei existiert.
+   * @param entries die Zeiterfassungen.
+   * @throws IOException
+   */
+  void write(List<TimeEntry> entries) throws IOException
+  {
+    if (entries.size() == 0)
+    {
+      if (this.file.exists() && !this.file.delete())
+        throw new IOException("unable to delete " + this.file);
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (TimeEntry e:entries)
+    {
+      sb.append(this.toString(e.getIssueId())).append('\t');
+      sb.append(this.toString(e.getProjectId())).append('\t');
+      sb.append(this.toString(e.getUserId())).append('\t');
+      sb.append(this.toString(e.getActivityId())).append('\t');
+      sb.append(this.toString(e.getHours())).append('\t');
+      sb.append(e.getSpentOn().getTime()).append('\t');
+      sb.append(e.getCreatedOn().getTime()).append('\t');
+      sb.append(URLEncoder.encode(e.getComment() != null ? e.getComment() : "",ENCODING));
+      sb.append('\n');
+    }
+
+    File tmp = new File(this.file.getParentFile(),this.file.getName() + ".tmp");
+    FileOutputStream os = new FileOutputStream(tmp);
+    try
+    {
+      os.write(sb.toString().getBytes(ENCODING));
+      os.getFD().sync();
+    }
+    finally
+    {
+      os.close();
+    }
+    Files.move(tmp.toPath(),this.file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Liest die gespeicherten Zeiterfassungen.
+   * @return die Zeiterfassungen. Niemals NULL.
+   * @throws IOException
+   */
+  List<TimeEntry> read() throws IOException
+  {
+    List<TimeEntry> result = new ArrayList<TimeEntry>();
+    if (!this.file.isFile())
+      return result;
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file),ENCODING));
+    try
+    {
+      String line = null;
+      while ((line = reader.readLine()) != null)
+      {
+        if (line.length() == 0)
+          continue;
+
+        try
+        {
+          String[] fields = line.split("\t",-1);
+          TimeEntry e = TimeEntryFactory.create();
+          e.setIssueId(this.toInt(fields[0]));
+          e.setProjectId(this.toInt(fields[1]));
+          e.setUserId(this.toInt(fields[2]));
+          e.setActivityId(this.toInt(fields[3]));
+          e.setHours(fields[4].length() > 0 ? Float.valueOf(fields[4]) : null);
+          e.setSpentOn(new Date(Long.parseLong(fields[5])));
+          e.setCreatedOn(new Date(Long.parseLong(fields[6])));
+          e.setComment(URLDecoder.decode(fields[7],ENCODING));
+          result.add(e);
+        }
+        catch (Exception e)
+        {
+          Logger.error("invalid line in time entry outbox, skipping: " + line,e);
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+    return result;
+  }
+
+  /**
+   * Wandelt den Wert in einen Text um.
+   * @param o der Wert. Kann NULL sein.
+   * @return der Text. Bei NULL ein Leerstring.
+   */
+  private String toString(Object o)
+  {
+    return o != null ? o.toString() : "";
+  }
+
+  /**
+   * Wandelt den Text in einen Integer um.
+   * @param s der Text.
+   * @return der Integer oder NULL, wenn der Text leer ist.
+   */
+  private Integer toInt(String s)
+  {
+    return s.length() > 0 ? Integer.valueOf(s) : null;
+  }
+}
+
+